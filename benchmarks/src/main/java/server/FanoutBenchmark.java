@@ -0,0 +1,93 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.AESUtil;
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Lobby fan-out to in-memory clients, through the path chat messages take: publishToRoom
+// encrypts a sequenced frame, then under the lobby's lock numbers it into the resume
+// buffer and offers it to every member's queue, each drained straight away. Line clients
+// also pay for the frame's one-off Base64 encoding. The server runs in-process on a
+// loopback transport with no journal and no rate limits or fan-out budget.
+// broadcastToAll, now only used for server notices, is kept alongside for comparison.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    @Param({"BINARY", "LINE"})
+    public WireProtocol.Format format;
+
+    @Param({"128"})
+    public int messageSize;
+
+    private final List<InMemoryClient> standIns = new ArrayList<>();
+    private InMemoryClient sender;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SecretKeySpec key = AESUtil.getKeyFromPassword("benchmark");
+        ChatServer.start(ServerConfig.fromArgs(new String[]{
+                "--mode=threads", "--no-journal", "--log-level=WARN", "--metrics-interval-s=0",
+                "--rate-messages=0", "--rate-bytes=0", "--fanout-budget=0",
+                "--heartbeat-ms=0", "--idle-timeout-ms=0"}), key, new LoopbackTransport());
+        for (int i = 0; i < clients; i++) {
+            InMemoryClient client = new InMemoryClient(key, "user" + i, format);
+            standIns.add(client);
+            ChatServer.addClient(client);
+            ChatServer.joinLobby(client);
+        }
+        sender = standIns.get(0);
+
+        char[] text = new char[messageSize];
+        Arrays.fill(text, 'x');
+        message = new String(text);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        long bytes = 0;
+        for (InMemoryClient client : standIns) {
+            bytes += client.getBytesWritten();
+        }
+        standIns.clear();
+        ChatServer.stop();
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing was delivered");
+        }
+    }
+
+    @Benchmark
+    public boolean publishToLobby() {
+        return ChatServer.publishToRoom(RoomRegistry.LOBBY, message, sender);
+    }
+
+    @Benchmark
+    public void broadcastToAll() {
+        ChatServer.broadcastToAll(message, null);
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.AESUtil;
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// The two wire formats through the production code, around the same encrypted message.
+// Encoding is Frame.bytes: a binary client is sent the frame encryption produced, a line
+// client its Base64 line, derived once per frame. Decoding is the receive path of each
+// format, decryption included, so the difference between the two is the framing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramingBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private SecretKeySpec key;
+    private byte[] sequenced;
+    private String line;
+    private ByteArrayInputStream frameBytes;
+    private DataInputStream frameIn;
+
+    @Setup
+    public void setUp() throws Exception {
+        key = AESUtil.getKeyFromPassword("benchmark");
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        String message = new String(text);
+
+        sequenced = WireProtocol.encryptSequencedFrame(message, key);
+        WireProtocol.setSequence(sequenced, 1);
+        // What readLine hands the server for a line client's message
+        line = AESUtil.encrypt(message, key);
+        frameBytes = new ByteArrayInputStream(WireProtocol.encryptFrame(WireProtocol.TYPE_MESSAGE, message, key));
+        frameIn = new DataInputStream(frameBytes);
+
+        byte[] encoded = encodeLine();
+        if (encoded[encoded.length - 1] != '\n' || encodeFrame() != sequenced) {
+            throw new IllegalStateException("Unexpected encoding");
+        }
+    }
+
+    // A fresh Frame each time, since a frame keeps the line it derived
+    @Benchmark
+    public byte[] encodeLine() {
+        return Frame.sequenced(sequenced).bytes(WireProtocol.Format.LINE);
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() {
+        return Frame.sequenced(sequenced).bytes(WireProtocol.Format.BINARY);
+    }
+
+    // As ClientHandler.handleLine decodes a line
+    @Benchmark
+    public String decodeLine() throws Exception {
+        return AESUtil.decrypt(line, key);
+    }
+
+    // As a binary reader takes a frame off the stream and ClientHandler.handlePacket decrypts it
+    @Benchmark
+    public String decodeFrame() throws Exception {
+        frameBytes.reset();
+        return WireProtocol.decrypt(WireProtocol.readPacket(frameIn), key);
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+
+// ClientHandler stand-in with no socket. It counts as joined without the handshake, and
+// every frame queued for it is taken off its outbound queue and "written" straight away,
+// so a broadcast to these costs what the server's side of fan-out costs and nothing else.
+class InMemoryClient extends ClientHandler {
+    private long bytesWritten;
+
+    InMemoryClient(SecretKeySpec key, String username, WireProtocol.Format format) throws Exception {
+        super(key, ChatServer.getClientRegistry());
+        if (format == WireProtocol.Format.BINARY) {
+            acceptBinary();
+        }
+        assumeJoined(username);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isRunning();
+    }
+
+    // Runs on the broadcasting thread, in place of a writer
+    @Override
+    protected void onFrameQueued() {
+        Frame frame;
+        while ((frame = getOutbound().poll()) != null) {
+            bytesWritten += frame.length(getWireFormat());
+            frame.written();
+        }
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,197 @@
+package server;
+
+import util.AESUtil;
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end check of the blocking server over LoopbackTransport; a plain main, no JMH:
+//
+//   java -cp target/benchmarks.jar server.LoopbackCheck [clients] [messages per client]
+//
+// Starts the server in-process with the rate limits and fan-out budget off, joins the
+// clients over the binary protocol, has them all send to the lobby at once, and checks
+// that every client gets every message exactly once, each sender's in the order sent,
+// and all in the same order with rising sequence numbers. Exits with 1 on a failure.
+public final class LoopbackCheck {
+    private static final String PREFIX = "check ";
+    private static final long TIMEOUT_S = 60;
+
+    private LoopbackCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int expected = clients * messages;
+
+        SecretKeySpec key = AESUtil.getKeyFromPassword("loopback-check");
+        LoopbackTransport transport = new LoopbackTransport();
+        ChatServer.start(ServerConfig.fromArgs(new String[]{
+                "--mode=virtual", "--no-journal", "--log-level=WARN",
+                "--rate-messages=0", "--rate-bytes=0", "--fanout-budget=0",
+                // Room for everything, so a slow reader here can't make the server drop frames
+                "--outbound-queue=" + (expected + 64)}), key, transport);
+
+        List<String> failures = new ArrayList<>();
+        try {
+            List<Client> joined = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                joined.add(new Client("user" + i, transport.connect(), key, expected));
+            }
+            for (Client client : joined) {
+                if (!client.joined.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException(client.username + " didn't get a session");
+                }
+            }
+
+            long start = System.nanoTime();
+            for (Client client : joined) {
+                client.startSending(messages);
+            }
+            for (Client client : joined) {
+                if (!client.done.await(TIMEOUT_S, TimeUnit.SECONDS)) {
+                    failures.add(client.username + " got " + client.received() + " of " + expected + " messages");
+                }
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            for (Client client : joined) {
+                client.check(joined.get(0), clients, messages, failures);
+                client.close();
+            }
+            System.out.printf("%d clients, %d messages each: %,d deliveries in %d ms%n",
+                    clients, messages, (long) expected * clients, elapsedMs);
+        } finally {
+            ChatServer.stop();
+        }
+
+        if (failures.isEmpty()) {
+            System.out.println("OK");
+            return;
+        }
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.exit(1);
+    }
+
+    // One binary client: a reader thread that records the check messages, and a sender thread
+    private static final class Client {
+        final String username;
+        final CountDownLatch joined = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        private final Transport.Connection connection;
+        private final SecretKeySpec key;
+        private final int expected;
+        private final OutputStream out;
+        // Reader thread only until done
+        private final List<Long> sequences = new ArrayList<>();
+        private final List<String> texts = new ArrayList<>();
+        private volatile String error;
+
+        Client(String username, Transport.Connection connection, SecretKeySpec key, int expected) throws Exception {
+            this.username = username;
+            this.connection = connection;
+            this.key = key;
+            this.expected = expected;
+            this.out = connection.getOutputStream();
+
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            out.write(WireProtocol.HELLO);
+            byte[] hello = new byte[WireProtocol.HELLO.length];
+            in.readFully(hello);
+            if (!WireProtocol.isHello(hello)) {
+                throw new IOException("Server didn't answer the binary preface");
+            }
+            out.write(WireProtocol.encryptFrame(WireProtocol.TYPE_JOIN, username, key));
+            out.flush();
+
+            Thread reader = new Thread(() -> read(in), "check-reader-" + username);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read(DataInputStream in) {
+            try {
+                WireProtocol.Packet packet;
+                while ((packet = WireProtocol.readPacket(in)) != null) {
+                    if (packet.type == WireProtocol.TYPE_SESSION) {
+                        joined.countDown();
+                    } else if (packet.type == WireProtocol.TYPE_SEQUENCED) {
+                        String text = WireProtocol.decrypt(packet, key);
+                        if (text.startsWith(PREFIX)) {
+                            sequences.add(WireProtocol.getSequence(packet));
+                            texts.add(text);
+                            if (texts.size() == expected) {
+                                done.countDown();
+                            }
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                error = e.toString();
+            }
+        }
+
+        void startSending(int messages) {
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        out.write(WireProtocol.encryptFrame(WireProtocol.TYPE_MESSAGE, PREFIX + username + " " + i, key));
+                    }
+                    out.flush();
+                } catch (Exception e) {
+                    error = e.toString();
+                }
+            }, "check-sender-" + username);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        int received() {
+            return texts.size();
+        }
+
+        // Against the first client: the lobby is delivered in one order, to everyone
+        void check(Client first, int clients, int messages, List<String> failures) {
+            if (error != null) {
+                failures.add(username + ": " + error);
+            }
+            if (texts.size() != (long) clients * messages) {
+                return; // Reported already
+            }
+
+            int[] next = new int[clients];
+            for (int i = 0; i < texts.size(); i++) {
+                String[] parts = texts.get(i).substring(PREFIX.length()).split(" ");
+                int sender = Integer.parseInt(parts[0].substring("user".length()));
+                int index = Integer.parseInt(parts[1]);
+                if (index != next[sender]) {
+                    failures.add(username + " got message " + index + " from " + parts[0] + ", expected " + next[sender]);
+                    return;
+                }
+                next[sender]++;
+
+                if (i > 0 && sequences.get(i) <= sequences.get(i - 1)) {
+                    failures.add(username + " got sequence " + sequences.get(i) + " after " + sequences.get(i - 1));
+                    return;
+                }
+            }
+            if (first != this && !sequences.equals(first.sequences)) {
+                failures.add(username + " got the lobby in a different order from " + first.username);
+            }
+        }
+
+        void close() throws IOException {
+            connection.close();
+        }
+    }
+}
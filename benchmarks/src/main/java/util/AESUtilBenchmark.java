@@ -0,0 +1,76 @@
+package util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// AESUtil at a range of message sizes: the byte[] API the server and binary clients use,
+// and the String API (UTF-8 + Base64) behind the line protocol
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AESUtilBenchmark {
+    @Param({"16", "256", "4096", "65536"})
+    public int size;
+
+    private SecretKeySpec key;
+    private byte[] plain;
+    private byte[] encrypted;
+    private byte[] out;
+    private String text;
+    private String encryptedText;
+
+    @Setup
+    public void setUp() throws Exception {
+        key = AESUtil.getKeyFromPassword("benchmark");
+
+        // Printable ASCII, so the String API sees exactly size bytes of UTF-8
+        Random random = new Random(42);
+        plain = new byte[size];
+        for (int i = 0; i < size; i++) {
+            plain[i] = (byte) (' ' + random.nextInt(95));
+        }
+        text = new String(plain, StandardCharsets.US_ASCII);
+
+        encrypted = new byte[AESUtil.encryptedLength(size)];
+        AESUtil.encrypt(plain, 0, size, key, encrypted, 0);
+        out = new byte[encrypted.length];
+        encryptedText = AESUtil.encrypt(text, key);
+    }
+
+    @Benchmark
+    public int encryptBytes() throws Exception {
+        return AESUtil.encrypt(plain, 0, plain.length, key, out, 0);
+    }
+
+    @Benchmark
+    public int decryptBytes() throws Exception {
+        return AESUtil.decrypt(encrypted, 0, encrypted.length, key, out, 0);
+    }
+
+    @Benchmark
+    public String encryptString() throws Exception {
+        return AESUtil.encrypt(text, key);
+    }
+
+    @Benchmark
+    public String decryptString() throws Exception {
+        return AESUtil.decrypt(encryptedText, key);
+    }
+}
@@ -0,0 +1,91 @@
+package client;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Backing list for the message view, capped at a fixed number of lines. It is a
+// ring buffer: once full, each new line overwrites the oldest in O(1) instead of
+// shifting the whole list, and a batch of lines reaches the ListView as a single
+// change. FX thread only, like any list bound to a control.
+public class BoundedMessageList extends ObservableListBase<String> {
+    private final String[] items;
+    private int head;
+    private int size;
+
+    public BoundedMessageList(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.items = new String[capacity];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return items[(head + index) % items.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // Appends the batch, dropping the oldest lines to stay within capacity
+    public void appendAll(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Of an oversized batch only the newest lines can survive
+        int from = Math.max(0, batch.size() - items.length);
+        int incoming = batch.size() - from;
+        int evicted = Math.max(0, size + incoming - items.length);
+
+        beginChange();
+        try {
+            if (evicted > 0) {
+                List<String> removed = new ArrayList<>(evicted);
+                for (int i = 0; i < evicted; i++) {
+                    removed.add(items[head]);
+                    items[head] = null;
+                    head = (head + 1) % items.length;
+                }
+                size -= evicted;
+                nextRemove(0, removed);
+            }
+
+            int start = size;
+            for (int i = from; i < batch.size(); i++) {
+                items[(head + size) % items.length] = batch.get(i);
+                size++;
+            }
+            nextAdd(start, size);
+        } finally {
+            endChange();
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+
+        List<String> removed = new ArrayList<>(this);
+        beginChange();
+        try {
+            for (int i = 0; i < size; i++) {
+                items[(head + i) % items.length] = null;
+            }
+            head = 0;
+            size = 0;
+            nextRemove(0, removed);
+        } finally {
+            endChange();
+        }
+    }
+}
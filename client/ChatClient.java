@@ -1,7 +1,7 @@
 package client;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
-import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -14,25 +14,34 @@ import javafx.stage.Stage;
 
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
-import java.util.Set;
-
-public class ChatClient extends Application {
-
-    private TextArea messageArea;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ChatClient extends Application implements ClientConnection.PresenceListener {
+
+    private ListView<String> messageView;
+    // Only the newest MAX_MESSAGES lines are kept; the ListView renders just the visible ones
+    private final BoundedMessageList messages = new BoundedMessageList(MAX_MESSAGES);
+    // Lines from any thread, moved into messages once per pulse by messagePump
+    private final Queue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private AnimationTimer messagePump;
     private TextField inputField;
     private ListView<String> userList;
     private Label statusLabel;
     private ClientConnection connection;
     private String username;
-    private Set<String> onlineUsers;
+    // Sorted online users; updated from any thread, applied to userList by messagePump
+    private final UserListModel userModel = new UserListModel();
 
     private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+    private static final int MAX_MESSAGES = 5000;
+    // Past this many joins (or leaves) in one presence update, the chat shows a count instead
+    private static final int PRESENCE_LINE_LIMIT = 20;
 
     @Override
     public void start(Stage primaryStage) {
-        onlineUsers = new HashSet<>();
-
         // Create main layout
         BorderPane root = new BorderPane();
         root.setPadding(new Insets(10));
@@ -65,8 +74,11 @@ public class ChatClient extends Application {
         primaryStage.setScene(scene);
         primaryStage.show();
 
+        startMessagePump();
+
         // Handle window close
         primaryStage.setOnCloseRequest(e -> {
+            messagePump.stop();
             if (connection != null) {
                 try {
                     connection.close();
@@ -100,24 +112,59 @@ public class ChatClient extends Application {
     }
 
     private void createChatArea(BorderPane root) {
-        messageArea = new TextArea();
-        messageArea.setEditable(false);
-        messageArea.setWrapText(true);
-        messageArea.setStyle(
+        // A ListView only creates cells for the rows on screen and recycles them while scrolling
+        messageView = new ListView<>(messages);
+        messageView.setFocusTraversable(false);
+        messageView.setStyle(
                 "-fx-control-inner-background: #1a1a1a; " +
-                        "-fx-text-fill: #ffffff; " +
                         "-fx-font-family: 'Consolas', 'Monaco', monospace; " +
                         "-fx-font-size: 13px; " +
                         "-fx-border-color: #444444; " +
                         "-fx-border-width: 1px;"
         );
+        messageView.setCellFactory(list -> new ListCell<String>() {
+            {
+                setWrapText(true);
+                // Wrap to the view's width instead of scrolling sideways
+                prefWidthProperty().bind(list.widthProperty().subtract(20));
+                setMaxWidth(Control.USE_PREF_SIZE);
+                setStyle("-fx-text-fill: #ffffff; -fx-background-color: #1a1a1a;");
+            }
+
+            @Override
+            protected void updateItem(String item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty ? null : item);
+            }
+        });
+
+        root.setCenter(messageView);
+    }
 
-        ScrollPane scrollPane = new ScrollPane(messageArea);
-        scrollPane.setFitToWidth(true);
-        scrollPane.setFitToHeight(true);
-        scrollPane.setStyle("-fx-background: #1a1a1a; -fx-border-color: #444444;");
+    // Applies everything received since the last frame: one list change and one scroll for
+    // the messages, and the queued user list updates
+    private void startMessagePump() {
+        messagePump = new AnimationTimer() {
+            private final List<String> batch = new ArrayList<>();
 
-        root.setCenter(scrollPane);
+            @Override
+            public void handle(long now) {
+                userModel.applyPending();
+
+                String message;
+                while ((message = pendingMessages.poll()) != null) {
+                    batch.add(message);
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+
+                messages.appendAll(batch);
+                batch.clear();
+                messageView.scrollTo(messages.size() - 1);
+            }
+        };
+        messagePump.start();
     }
 
     private void createUserListSidebar(BorderPane root) {
@@ -129,7 +176,7 @@ public class ChatClient extends Application {
         Label userListLabel = new Label("👥 Online Users");
         userListLabel.setStyle("-fx-text-fill: #00ff88; -fx-font-size: 14px; -fx-font-weight: bold;");
 
-        userList = new ListView<>();
+        userList = new ListView<>(userModel.getUsers());
         userList.setPrefHeight(300);
         userList.setStyle(
                 "-fx-control-inner-background: #2a2a2a; " +
@@ -193,11 +240,11 @@ public class ChatClient extends Application {
 
             passDialog.showAndWait().ifPresent(password -> {
                 try {
-                    connection = new ClientConnection("localhost", 1234, password, this.username, this::handleMessage);
+                    connection = new ClientConnection("localhost", 1234, password, this.username, this::handleMessage, this);
                     statusLabel.setText("🟢 Connected as " + this.username);
                     statusLabel.setStyle("-fx-text-fill: #00ff88; -fx-font-size: 12px;");
                     appendMessage("[Connected as " + this.username + "]");
-                    addUser(this.username);
+                    userModel.add(this.username);
                 } catch (Exception e) {
                     statusLabel.setText("🔴 Connection Failed");
                     statusLabel.setStyle("-fx-text-fill: #ff4444; -fx-font-size: 12px;");
@@ -208,48 +255,64 @@ public class ChatClient extends Application {
     }
 
     private void handleMessage(String message) {
-        Platform.runLater(() -> {
-            appendMessage(message);
-            updateUserList(message);
-            autoScroll();
-        });
+        appendMessage(message);
+        // Text presence lines only come from line-protocol servers
+        updateUserList(message);
     }
 
-    private void updateUserList(String message) {
-        if (message.contains(" has joined the chat")) {
-            String user = message.replace("🟢 ", "").replace(" has joined the chat", "");
-            addUser(user);
-        } else if (message.contains(" has left the chat")) {
-            String user = message.replace("🔴 ", "").replace(" has left the chat", "");
-            removeUser(user);
+    // Presence frames from a binary-protocol server; line-protocol servers still go through updateUserList
+    @Override
+    public void onSnapshot(List<String> usernames) {
+        userModel.replaceAll(usernames);
+        userModel.add(username);
+    }
+
+    @Override
+    public void onJoined(List<String> usernames) {
+        appendPresence(usernames, "🟢 ", " has joined the chat", " more users joined the chat");
+        for (String user : usernames) {
+            userModel.add(user);
         }
     }
 
-    private void addUser(String user) {
-        if (!onlineUsers.contains(user)) {
-            onlineUsers.add(user);
-            Platform.runLater(() -> {
-                userList.getItems().clear();
-                userList.getItems().addAll(onlineUsers);
-                userList.getItems().sort(String::compareToIgnoreCase);
-            });
+    @Override
+    public void onLeft(List<String> usernames) {
+        appendPresence(usernames, "🔴 ", " has left the chat", " more users left the chat");
+        for (String user : usernames) {
+            userModel.remove(user);
         }
     }
 
-    private void removeUser(String user) {
-        if (onlineUsers.contains(user)) {
-            onlineUsers.remove(user);
-            Platform.runLater(() -> {
-                userList.getItems().clear();
-                userList.getItems().addAll(onlineUsers);
-                userList.getItems().sort(String::compareToIgnoreCase);
-            });
+    private void appendPresence(List<String> usernames, String icon, String each, String rest) {
+        int listed = Math.min(usernames.size(), PRESENCE_LINE_LIMIT);
+        for (int i = 0; i < listed; i++) {
+            appendMessage(icon + usernames.get(i) + each);
+        }
+        if (usernames.size() > listed) {
+            appendMessage(icon + (usernames.size() - listed) + rest);
+        }
+    }
+
+    private void updateUserList(String message) {
+        if (message.contains(" has joined the chat")) {
+            String user = message.replace("🟢 ", "").replace(" has joined the chat", "");
+            userModel.add(user);
+        } else if (message.contains(" has left the chat")) {
+            String user = message.replace("🔴 ", "").replace(" has left the chat", "");
+            userModel.remove(user);
         }
     }
 
     private void sendMessage() {
         String text = inputField.getText().trim();
         if (!text.isEmpty() && connection != null) {
+            // Room commands (/join, /leave, /rooms) go to the server as typed
+            if (text.startsWith("/")) {
+                connection.sendMessage(text);
+                inputField.clear();
+                return;
+            }
+
             String timestamp = LocalTime.now().format(TIME_FORMAT);
             String fullMessage = "[" + timestamp + "] " + this.username + ": " + text;
             connection.sendMessage(fullMessage);
@@ -257,17 +320,9 @@ public class ChatClient extends Application {
         }
     }
 
+    // Safe from any thread; shown on the next pulse
     private void appendMessage(String message) {
-        Platform.runLater(() -> {
-            messageArea.appendText(message + "\n");
-            autoScroll();
-        });
-    }
-
-    private void autoScroll() {
-        Platform.runLater(() -> {
-            messageArea.setScrollTop(Double.MAX_VALUE);
-        });
+        pendingMessages.add(message);
     }
 
     public static void main(String[] args) {
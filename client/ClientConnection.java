@@ -1,11 +1,19 @@
 package client;
 
 import util.AESUtil;
+import util.WireProtocol;
 
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
@@ -13,24 +21,81 @@ public class ClientConnection {
     private final String serverAddress;
     private final int serverPort;
     private Socket socket;
-    private PrintWriter out;
+    private volatile PrintWriter out;
     private BufferedReader in;
+    private volatile DataOutputStream dataOut;
+    private DataInputStream dataIn;
+    // Try binary framing first; cleared for good once a server turns out to be line-only
+    // (it hung up on the preface or answered something else, never on a timeout)
+    private volatile boolean binarySupported = true;
+    private volatile boolean binary;
     private SecretKeySpec key;
     private String username;
     private Consumer<String> messageHandler;
+    private final PresenceListener presenceListener;
+    // Makes the listener, sender and reconnect threads
+    private final ThreadFactory threadFactory;
     private AtomicBoolean isConnected;
     private AtomicBoolean shouldReconnect;
     private Thread listenerThread;
+    // Messages waiting for the sender thread; kept across reconnects
+    private final BlockingQueue<OutgoingMessage> sendQueue = new LinkedBlockingQueue<>(MAX_PENDING_SENDS);
+    // The sender thread waits on this while disconnected
+    private final Object connectionMonitor = new Object();
+    private Thread senderThread;
+    // Lets a reconnect pick up the same session on the server; set by its session frame
+    private volatile String sessionToken;
+    // Last sequence number received, so a resumed session is sent only what we missed
+    private volatile long lastSequence;
+
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    // Servers ping quiet binary connections well within this, so hitting it means the server is gone
+    private static final int READ_TIMEOUT = 60000;
+    private static final int MAX_PENDING_SENDS = 1000;
+    private static final int MAX_SEND_BATCH = 64;
+
+    public enum DeliveryStatus {
+        SENT,  // written and flushed to the socket
+        FAILED // not sent: queue full, encryption error, or the connection was given up
+    }
+
+    // Structured user-list updates from servers that speak the binary protocol
+    public interface PresenceListener {
+        // Everyone online right now; replaces whatever list the client had (also after a reconnect)
+        void onSnapshot(List<String> usernames);
+
+        void onJoined(List<String> usernames);
+
+        void onLeft(List<String> usernames);
+    }
 
     public ClientConnection(String serverAddress, int serverPort, String password, String username, Consumer<String> onMessageReceived) throws Exception {
+        this(serverAddress, serverPort, password, username, onMessageReceived, null);
+    }
+
+    // Without a presence listener, presence updates are passed to onMessageReceived as the
+    // familiar "has joined/left the chat" lines
+    public ClientConnection(String serverAddress, int serverPort, String password, String username, Consumer<String> onMessageReceived,
+                            PresenceListener presenceListener) throws Exception {
+        this(serverAddress, serverPort, AESUtil.getKeyFromPassword(password), username, onMessageReceived, presenceListener,
+                ClientConnection::newDaemonThread);
+    }
+
+    // For many connections in one process (the load generator): the key is derived once
+    // and shared, and threads can come from e.g. a virtual thread factory
+    public ClientConnection(String serverAddress, int serverPort, SecretKeySpec key, String username, Consumer<String> onMessageReceived,
+                            PresenceListener presenceListener, ThreadFactory threadFactory) throws IOException {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
         this.username = username;
         this.messageHandler = onMessageReceived;
-        this.key = AESUtil.getKeyFromPassword(password);
+        this.presenceListener = presenceListener;
+        this.threadFactory = threadFactory;
+        this.key = key;
         this.isConnected = new AtomicBoolean(false);
         this.shouldReconnect = new AtomicBoolean(true);
         connect();
+        startSender();
     }
 
     private void connect() throws IOException {
@@ -40,40 +105,105 @@ public class ClientConnection {
             // IMPROVED: Better socket configuration to prevent disconnections
             socket.setKeepAlive(true);
             socket.setTcpNoDelay(true);
-            socket.setSoTimeout(60000); // 60 second timeout
+            socket.setSoTimeout(READ_TIMEOUT);
+
+            BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+            binary = binarySupported && negotiateBinary(input);
+            if (binarySupported && !binary) {
+                // Line-only server: it drops the connection on our preface, so start over
+                binarySupported = false;
+                closeConnection();
+                connect();
+                return;
+            }
 
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            isConnected.set(true);
+            if (binary) {
+                dataIn = new DataInputStream(input);
+                dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } else {
+                in = new BufferedReader(new InputStreamReader(input));
+                // Not auto-flushing: the sender thread flushes once per batch
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            }
 
             // Send encrypted username first
             try {
-                String encryptedUsername = AESUtil.encrypt(username, key);
-                out.println(encryptedUsername);
+                if (binary && sessionToken != null) {
+                    writeFrame(WireProtocol.encryptFrame(WireProtocol.TYPE_RESUME,
+                            WireProtocol.encodeResume(username, sessionToken, lastSequence), key));
+                } else if (binary) {
+                    lastSequence = 0; // A new session
+                    writeFrame(WireProtocol.encryptFrame(WireProtocol.TYPE_JOIN, username, key));
+                } else {
+                    String encryptedUsername = AESUtil.encrypt(username, key);
+                    out.println(encryptedUsername);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                throw e;
             } catch (Exception e) {
                 throw new IOException("Failed to encrypt username", e);
             }
 
+            // Only now may the sender thread write, so the username always goes first
+            synchronized (connectionMonitor) {
+                isConnected.set(true);
+                connectionMonitor.notifyAll();
+            }
+
             // Start listening for incoming messages
             startMessageListener();
 
         } catch (IOException e) {
             isConnected.set(false);
+            closeConnection(); // e.g. a handshake that timed out; the next attempt starts clean
             throw e;
         }
     }
 
+    // Offers binary framing; false if the server closes the connection on the preface or
+    // answers with something else. A timeout or reset proves nothing about the protocol (the
+    // server may just be busy), so it is thrown as an ordinary connection failure and the
+    // next attempt offers binary again.
+    private boolean negotiateBinary(InputStream input) throws IOException {
+        OutputStream rawOut = socket.getOutputStream();
+        rawOut.write(WireProtocol.HELLO);
+        rawOut.flush();
+
+        byte[] reply = new byte[WireProtocol.HELLO.length];
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            new DataInputStream(input).readFully(reply);
+        } catch (SocketTimeoutException e) {
+            throw new SocketTimeoutException("No reply to the protocol handshake within " + HANDSHAKE_TIMEOUT + " ms");
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(READ_TIMEOUT);
+            }
+        }
+        return WireProtocol.isHello(reply);
+    }
+
+    private static Thread newDaemonThread(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        return thread;
+    }
+
     private void startMessageListener() {
-        listenerThread = new Thread(() -> {
-            String line;
+        listenerThread = threadFactory.newThread(() -> {
             try {
-                while (isConnected.get() && (line = in.readLine()) != null) {
-                    try {
-                        String decrypted = AESUtil.decrypt(line, key);
-                        messageHandler.accept(decrypted);
-                    } catch (Exception e) {
-                        messageHandler.accept("[Decryption failed]");
-                    }
+                if (binary) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+                // The server closed the connection (e.g. it restarted)
+                if (isConnected.get()) {
+                    messageHandler.accept("[Connection lost - attempting to reconnect...]");
+                    attemptReconnection();
                 }
             } catch (SocketException e) {
                 if (isConnected.get()) {
@@ -87,18 +217,97 @@ public class ClientConnection {
                 }
             }
         });
-        listenerThread.setDaemon(true);
         listenerThread.start();
     }
 
+    private void readLines() throws IOException {
+        String line;
+        while (isConnected.get() && (line = in.readLine()) != null) {
+            try {
+                String decrypted = AESUtil.decrypt(line, key);
+                messageHandler.accept(decrypted);
+            } catch (Exception e) {
+                messageHandler.accept("[Decryption failed]");
+            }
+        }
+    }
+
+    private void readFrames() throws IOException {
+        WireProtocol.Packet packet;
+        while (isConnected.get() && (packet = WireProtocol.readPacket(dataIn)) != null) {
+            if (packet.type == WireProtocol.TYPE_PING) {
+                writeFrame(WireProtocol.emptyFrame(WireProtocol.TYPE_PONG));
+                continue;
+            }
+            try {
+                switch (packet.type) {
+                    case WireProtocol.TYPE_MESSAGE:
+                        messageHandler.accept(WireProtocol.decrypt(packet, key));
+                        break;
+                    case WireProtocol.TYPE_SEQUENCED:
+                        // The last one received, not the highest: rooms and private messages are
+                        // numbered independently, so they can arrive out of numeric order
+                        lastSequence = WireProtocol.getSequence(packet);
+                        messageHandler.accept(WireProtocol.decrypt(packet, key));
+                        break;
+                    case WireProtocol.TYPE_SESSION:
+                        WireProtocol.Session session = WireProtocol.decodeSession(WireProtocol.decryptBytes(packet, key));
+                        sessionToken = session.token;
+                        if (session.resumed) {
+                            messageHandler.accept("[Session resumed]");
+                        }
+                        break;
+                    case WireProtocol.TYPE_PRESENCE_SNAPSHOT:
+                    case WireProtocol.TYPE_PRESENCE_DELTA:
+                        handlePresence(packet.type, WireProtocol.decodePresence(WireProtocol.decryptBytes(packet, key)));
+                        break;
+                    default:
+                        // Unknown frame types are skipped so newer servers can add more
+                        break;
+                }
+            } catch (Exception e) {
+                messageHandler.accept("[Decryption failed]");
+            }
+        }
+    }
+
+    private void handlePresence(byte type, WireProtocol.Presence presence) {
+        if (presenceListener != null) {
+            if (type == WireProtocol.TYPE_PRESENCE_SNAPSHOT) {
+                presenceListener.onSnapshot(presence.usernames);
+            } else if (presence.change == WireProtocol.PRESENCE_JOINED) {
+                presenceListener.onJoined(presence.usernames);
+            } else if (presence.change == WireProtocol.PRESENCE_LEFT) {
+                presenceListener.onLeft(presence.usernames);
+            }
+            return;
+        }
+
+        for (String user : presence.usernames) {
+            if (presence.change == WireProtocol.PRESENCE_LEFT) {
+                messageHandler.accept("🔴 " + user + " has left the chat");
+            } else if (type == WireProtocol.TYPE_PRESENCE_DELTA || !user.equals(username)) {
+                messageHandler.accept("🟢 " + user + " has joined the chat");
+            }
+        }
+    }
+
+    private synchronized void writeFrame(byte[] frame) throws IOException {
+        dataOut.write(frame);
+        dataOut.flush();
+    }
+
     private void attemptReconnection() {
-        isConnected.set(false);
+        // The listener and the sender can both notice a dead connection; only one reconnects
+        if (!isConnected.compareAndSet(true, false)) {
+            return;
+        }
 
         if (!shouldReconnect.get()) {
             return;
         }
 
-        new Thread(() -> {
+        threadFactory.newThread(() -> {
             int attempts = 0;
             int maxAttempts = 5;
             int baseDelay = 2000; // 2 seconds
@@ -124,26 +333,176 @@ public class ClientConnection {
 
             messageHandler.accept("[Failed to reconnect after " + maxAttempts + " attempts]");
             isConnected.set(false);
+            shouldReconnect.set(false);
+            wakeSender();
         }).start();
     }
 
+    // Never blocks: the message is queued for the sender thread. Failures are reported
+    // through the message handler.
     public void sendMessage(String message) {
-        if (!isConnected.get()) {
-            messageHandler.accept("[Cannot send message - not connected]");
+        sendMessage(message, null);
+    }
+
+    // Never blocks. onStatus (may be null) is called once, from the sender thread, when the
+    // message has been flushed to the socket or given up on. While disconnected, messages
+    // stay queued and go out after the reconnect.
+    public void sendMessage(String message, Consumer<DeliveryStatus> onStatus) {
+        OutgoingMessage outgoing = new OutgoingMessage(message, onStatus);
+        if (!shouldReconnect.get()) {
+            outgoing.fail("not connected");
             return;
         }
+        if (!sendQueue.offer(outgoing)) {
+            outgoing.fail("too many messages waiting to be sent");
+            return;
+        }
+        if (!isConnected.get()) {
+            messageHandler.accept("[Not connected - message will be sent after reconnecting]");
+        }
+    }
+
+    private void startSender() {
+        senderThread = threadFactory.newThread(this::runSender);
+        senderThread.setName("client-sender");
+        senderThread.start();
+    }
+
+    // Sender thread: waits for a connection, then writes whatever is queued (up to a batch)
+    // and flushes once. A batch that fails is retried after the reconnect.
+    private void runSender() {
+        ArrayDeque<OutgoingMessage> unsent = new ArrayDeque<>();
+        List<OutgoingMessage> batch = new ArrayList<>(MAX_SEND_BATCH);
 
         try {
-            String encrypted = AESUtil.encrypt(message, key);
-            out.println(encrypted);
+            while (true) {
+                if (unsent.isEmpty()) {
+                    unsent.add(sendQueue.take());
+                }
+                if (!awaitConnection()) {
+                    break;
+                }
+
+                while (batch.size() < MAX_SEND_BATCH && !unsent.isEmpty()) {
+                    batch.add(unsent.poll());
+                }
+                while (batch.size() < MAX_SEND_BATCH) {
+                    OutgoingMessage next = sendQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                try {
+                    writeBatch(batch);
+                    for (OutgoingMessage sent : batch) {
+                        sent.complete(DeliveryStatus.SENT);
+                    }
+                } catch (IOException e) {
+                    // Keep them, in order, for the next connection
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        unsent.addFirst(batch.get(i));
+                    }
+                    if (isConnected.get()) {
+                        messageHandler.accept("[Message send failed - connection error]");
+                        attemptReconnection();
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        }
+
+        // Connection given up or closed: fail whatever is left
+        for (OutgoingMessage message : unsent) {
+            message.fail("not connected");
+        }
+        OutgoingMessage message;
+        while ((message = sendQueue.poll()) != null) {
+            message.fail("not connected");
+        }
+    }
+
+    // False once the connection has been closed or reconnecting was given up
+    private boolean awaitConnection() throws InterruptedException {
+        synchronized (connectionMonitor) {
+            while (!isConnected.get()) {
+                if (!shouldReconnect.get()) {
+                    return false;
+                }
+                connectionMonitor.wait();
+            }
+            return true;
+        }
+    }
 
-            // Check if the message was sent successfully
-            if (out.checkError()) {
-                messageHandler.accept("[Message send failed - connection error]");
-                attemptReconnection();
+    private void wakeSender() {
+        synchronized (connectionMonitor) {
+            connectionMonitor.notifyAll();
+        }
+    }
+
+    // Sender thread only. Encryption failures fail just that message; I/O failures throw.
+    private void writeBatch(List<OutgoingMessage> batch) throws IOException {
+        List<OutgoingMessage> unencryptable = new ArrayList<>();
+
+        if (binary) {
+            synchronized (this) {
+                for (OutgoingMessage message : batch) {
+                    try {
+                        dataOut.write(WireProtocol.encryptFrame(WireProtocol.TYPE_MESSAGE, message.text, key));
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        unencryptable.add(message);
+                    }
+                }
+                dataOut.flush();
+            }
+        } else {
+            PrintWriter writer = out;
+            for (OutgoingMessage message : batch) {
+                try {
+                    writer.println(AESUtil.encrypt(message.text, key));
+                } catch (Exception e) {
+                    unencryptable.add(message);
+                }
+            }
+            writer.flush();
+            if (writer.checkError()) {
+                throw new IOException("Write failed");
+            }
+        }
+
+        for (OutgoingMessage message : unencryptable) {
+            batch.remove(message);
+            message.fail("encryption failed");
+        }
+    }
+
+    private final class OutgoingMessage {
+        final String text;
+        final Consumer<DeliveryStatus> onStatus;
+
+        OutgoingMessage(String text, Consumer<DeliveryStatus> onStatus) {
+            this.text = text;
+            this.onStatus = onStatus;
+        }
+
+        void complete(DeliveryStatus status) {
+            if (onStatus != null) {
+                onStatus.accept(status);
+            }
+        }
+
+        void fail(String reason) {
+            if (onStatus != null) {
+                onStatus.accept(DeliveryStatus.FAILED);
+            } else {
+                messageHandler.accept("[Failed to send message: " + reason + "]");
             }
-        } catch (Exception e) {
-            messageHandler.accept("[Failed to send message: " + e.getMessage() + "]");
         }
     }
 
@@ -158,6 +517,12 @@ public class ClientConnection {
             if (out != null) {
                 out.close();
             }
+            if (dataIn != null) {
+                dataIn.close();
+            }
+            if (dataOut != null) {
+                dataOut.close();
+            }
         } catch (IOException e) {
             // Ignore close errors
         }
@@ -165,11 +530,20 @@ public class ClientConnection {
 
     public void close() throws IOException {
         shouldReconnect.set(false);
-        isConnected.set(false);
+        if (isConnected.getAndSet(false) && binary) {
+            try {
+                writeFrame(WireProtocol.emptyFrame(WireProtocol.TYPE_LEAVE));
+            } catch (IOException ignored) {
+                // Going away regardless; the server will just keep the session until it expires
+            }
+        }
 
         if (listenerThread != null) {
             listenerThread.interrupt();
         }
+        if (senderThread != null) {
+            senderThread.interrupt();
+        }
 
         closeConnection();
     }
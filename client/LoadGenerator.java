@@ -0,0 +1,388 @@
+package client;
+
+import util.AESUtil;
+import util.LatencyHistogram;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load test for a ChatServer: connects many simulated users over the normal
+// client protocol (ClientConnection), has each send lobby messages at a fixed rate, and
+// times every delivery. Messages carry their send time, so latency is measured from when a
+// message was due to be sent to when each user reads it, server fan-out and both hops
+// included. Everything runs in one JVM, so System.nanoTime() is a shared clock.
+//
+//   echo secret | java client.LoadGenerator --users=1000 --rate=1 --duration-s=60 --csv=runs.csv
+//
+// The server's default per-server fan-out budget will throttle big runs; start it with
+// --fanout-budget=0 to measure the server rather than its limit.
+public class LoadGenerator {
+    // Marks (and leads) the load generator's messages: "~load <due nanos> <padding>"
+    private static final String MARKER = "~load ";
+    private static final double NANOS_PER_MS = 1_000_000.0;
+    // Percentiles to within ~3%; finer than the server's metrics, since a run is what gets compared
+    private static final int HISTOGRAM_BITS = 5;
+
+    private String host = "localhost";
+    private int port = 1234;
+    private int users = 100;
+    private double rate = 1.0;
+    private int messageBytes = 64;
+    private int rampSeconds = 5;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private int drainSeconds = 2;
+    private boolean virtualThreads = true;
+    private String csvPath;
+
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram(HISTOGRAM_BITS);
+    private final LatencyHistogram connectLatency = new LatencyHistogram(HISTOGRAM_BITS);
+    private final LatencyHistogram reconnectLatency = new LatencyHistogram(HISTOGRAM_BITS);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    // Messages due in [measureFrom, measureUntil) are counted; the rest only warm up or drain
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MAX_VALUE;
+    private volatile boolean sending = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = fromArgs(args);
+
+        System.out.print("Enter shared password: ");
+        String password = new BufferedReader(new InputStreamReader(System.in)).readLine();
+        generator.run(AESUtil.getKeyFromPassword(password == null ? "" : password));
+    }
+
+    static LoadGenerator fromArgs(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? "true" : arg.substring(eq + 1);
+
+            switch (name) {
+                case "host":
+                    generator.host = value;
+                    break;
+                case "port":
+                    generator.port = Integer.parseInt(value);
+                    break;
+                case "users":
+                    generator.users = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    generator.rate = Double.parseDouble(value);
+                    break;
+                case "message-bytes":
+                    generator.messageBytes = Integer.parseInt(value);
+                    break;
+                case "ramp-s":
+                    generator.rampSeconds = Integer.parseInt(value);
+                    break;
+                case "warmup-s":
+                    generator.warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "duration-s":
+                    generator.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "drain-s":
+                    generator.drainSeconds = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    generator.virtualThreads = !"platform".equalsIgnoreCase(value);
+                    break;
+                case "csv":
+                    generator.csvPath = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+
+        if (generator.users < 1 || generator.rate <= 0 || generator.durationSeconds < 1) {
+            throw new IllegalArgumentException("--users, --rate and --duration-s must be positive");
+        }
+        if (generator.rampSeconds < 0 || generator.warmupSeconds < 0 || generator.drainSeconds < 0) {
+            throw new IllegalArgumentException("--ramp-s, --warmup-s and --drain-s must be >= 0");
+        }
+        if (generator.messageBytes < MARKER.length() + 20) {
+            throw new IllegalArgumentException("--message-bytes must be at least " + (MARKER.length() + 20));
+        }
+        return generator;
+    }
+
+    void run(SecretKeySpec key) throws Exception {
+        ThreadFactory threads = virtualThreads ? virtualThreadFactory() : null;
+        if (threads == null) {
+            if (virtualThreads) {
+                System.out.println("Virtual threads need Java 21+, falling back to platform threads");
+                virtualThreads = false;
+            }
+            threads = runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        List<SimulatedUser> connected = connectAll(key, threads);
+        if (connected.isEmpty()) {
+            System.out.println("No user could connect to " + host + ":" + port);
+            return;
+        }
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        System.out.printf("%d users connected; sending for %ds (+%ds warm-up)%n", connected.size(), durationSeconds, warmupSeconds);
+
+        List<Thread> senders = new ArrayList<>();
+        for (SimulatedUser user : connected) {
+            Thread sender = threads.newThread(() -> user.sendUntilStopped(start));
+            senders.add(sender);
+            sender.start();
+        }
+
+        sleepUntil(measureUntil);
+        sending = false;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        // Let deliveries of the last messages arrive
+        TimeUnit.SECONDS.sleep(drainSeconds);
+
+        for (SimulatedUser user : connected) {
+            user.close();
+        }
+        report(connected.size());
+    }
+
+    // Opens the connections spread evenly over the ramp, each on its own thread
+    private List<SimulatedUser> connectAll(SecretKeySpec key, ThreadFactory threads) throws InterruptedException {
+        List<SimulatedUser> connected = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(users);
+        long spacingNanos = TimeUnit.SECONDS.toNanos(rampSeconds) / users;
+        long rampStart = System.nanoTime();
+
+        for (int i = 0; i < users; i++) {
+            SimulatedUser user = new SimulatedUser("load-" + i);
+            threads.newThread(() -> {
+                try {
+                    long begin = System.nanoTime();
+                    user.connect(key, threads);
+                    connectLatency.record(System.nanoTime() - begin);
+                    connected.add(user);
+                } catch (IOException e) {
+                    connectFailures.increment();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+            sleepUntil(rampStart + (i + 1) * spacingNanos);
+        }
+
+        done.await();
+        return new ArrayList<>(connected);
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long wait = deadline - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // Looked up reflectively so the generator still builds and runs on Java 8-20
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private boolean isMeasured(long due) {
+        return due >= measureFrom && due < measureUntil;
+    }
+
+    private void report(int connectedUsers) throws IOException {
+        long sentCount = sent.sum();
+        long deliveredCount = delivered.sum();
+        // Lobby messages go to everyone, the sender included
+        long expected = sentCount * connectedUsers;
+        double deliveredRatio = expected == 0 ? 0 : (double) deliveredCount / expected;
+
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%nUsers      %,d connected, %,d failed (%s threads)%n", connectedUsers, connectFailures.sum(),
+                virtualThreads ? "virtual" : "platform"));
+        text.append(String.format("Connect    %s%n", summary(connectLatency)));
+        text.append(String.format("Sent       %,d (%,.1f msg/s), %,d failed%n", sentCount, (double) sentCount / durationSeconds,
+                sendFailures.sum()));
+        text.append(String.format("Delivered  %,d of %,d expected (%.2f%%), %,.0f deliveries/s%n", deliveredCount, expected,
+                100 * deliveredRatio, (double) deliveredCount / durationSeconds));
+        text.append(String.format("Latency    %s%n", summary(deliveryLatency)));
+        text.append(String.format("Reconnect  %,d disconnects; %s%n", disconnects.sum(), summary(reconnectLatency)));
+        System.out.print(text);
+
+        if (csvPath != null) {
+            appendCsv(connectedUsers, sentCount, deliveredCount, deliveredRatio);
+            System.out.println("Appended to " + csvPath);
+        }
+    }
+
+    private static String summary(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "none";
+        }
+        return String.format("n=%,d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms", histogram.getCount(),
+                millis(histogram.percentile(0.50)), millis(histogram.percentile(0.90)), millis(histogram.percentile(0.99)),
+                millis(histogram.percentile(0.999)), millis(histogram.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / NANOS_PER_MS;
+    }
+
+    // One row per run, so runs (and servers) can be compared side by side
+    private void appendCsv(int connectedUsers, long sentCount, long deliveredCount, double deliveredRatio) throws IOException {
+        boolean isNew = !Files.exists(Paths.get(csvPath));
+        try (PrintWriter csv = new PrintWriter(new FileWriter(csvPath, true))) {
+            if (isNew) {
+                csv.println("time,users,connected,rate,message_bytes,duration_s,threads,sent,send_failed,delivered,"
+                        + "delivered_ratio,deliveries_per_s,latency_p50_ms,latency_p90_ms,latency_p99_ms,latency_p999_ms,"
+                        + "latency_max_ms,connect_p50_ms,connect_p99_ms,disconnects,reconnect_p50_ms");
+            }
+            csv.println(String.format(Locale.ROOT,
+                    "%s,%d,%d,%s,%d,%d,%s,%d,%d,%d,%.4f,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%.3f",
+                    Instant.now(), users, connectedUsers, rate, messageBytes, durationSeconds,
+                    virtualThreads ? "virtual" : "platform", sentCount, sendFailures.sum(), deliveredCount, deliveredRatio,
+                    (double) deliveredCount / durationSeconds,
+                    millis(deliveryLatency.percentile(0.50)), millis(deliveryLatency.percentile(0.90)),
+                    millis(deliveryLatency.percentile(0.99)), millis(deliveryLatency.percentile(0.999)),
+                    millis(deliveryLatency.getMax()), millis(connectLatency.percentile(0.50)),
+                    millis(connectLatency.percentile(0.99)), disconnects.sum(), millis(reconnectLatency.percentile(0.50))));
+        }
+    }
+
+    private final class SimulatedUser {
+        private final String username;
+        private ClientConnection connection;
+        // When this user's connection was last reported lost; 0 while connected
+        private volatile long lostAt;
+
+        SimulatedUser(String username) {
+            this.username = username;
+        }
+
+        void connect(SecretKeySpec key, ThreadFactory threads) throws IOException {
+            connection = new ClientConnection(host, port, key, username, this::onMessage, new IgnorePresence(), threads);
+        }
+
+        // Sends on a fixed schedule from a random phase. Each message is stamped with when it
+        // was due rather than when it went, so a stalled sender can't hide the stall.
+        void sendUntilStopped(long start) {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long due = start + ThreadLocalRandom.current().nextLong(interval);
+            char[] padding = new char[messageBytes - MARKER.length() - 20];
+            Arrays.fill(padding, 'x');
+            String pad = new String(padding);
+
+            try {
+                while (sending) {
+                    sleepUntil(due);
+                    if (!sending) {
+                        break;
+                    }
+
+                    boolean measured = isMeasured(due);
+                    connection.sendMessage(MARKER + String.format("%019d ", due) + pad, status -> {
+                        if (!measured) {
+                            return;
+                        }
+                        if (status == ClientConnection.DeliveryStatus.SENT) {
+                            sent.increment();
+                        } else {
+                            sendFailures.increment();
+                        }
+                    });
+                    due += interval;
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+
+        private void onMessage(String message) {
+            long now = System.nanoTime();
+            if (message.startsWith(MARKER)) {
+                long due = Long.parseLong(message.substring(MARKER.length(), MARKER.length() + 19));
+                if (isMeasured(due)) {
+                    deliveryLatency.record(now - due);
+                    delivered.increment();
+                }
+            } else if (message.startsWith("[Connection lost") || message.startsWith("[Connection error")
+                    || message.startsWith("[Message send failed")) {
+                if (lostAt == 0) {
+                    lostAt = now;
+                    disconnects.increment();
+                }
+            } else if (message.startsWith("[Reconnected")) {
+                if (lostAt != 0) {
+                    reconnectLatency.record(now - lostAt);
+                    lostAt = 0;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (IOException e) {
+                // Done with it either way
+            }
+        }
+    }
+
+    // Joins and leaves aren't measured; keep them out of the message handler
+    private static final class IgnorePresence implements ClientConnection.PresenceListener {
+        @Override
+        public void onSnapshot(List<String> usernames) {
+        }
+
+        @Override
+        public void onJoined(List<String> usernames) {
+        }
+
+        @Override
+        public void onLeft(List<String> usernames) {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package client;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Sorted, de-duplicated list of online users for the sidebar. Any thread may
+// call add/remove/replaceAll; changes are queued and applied on the FX thread
+// by applyPending(). A pulse with a single change is a binary-search insert or
+// remove; a pulse with more (a reconnect storm) is merged into the sorted list
+// in one pass and applied as one change, so the ListView lays out once either way.
+public class UserListModel {
+    private static final Comparator<String> ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private final ObservableList<String> users = FXCollections.observableArrayList();
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+
+    // FX thread only
+    public ObservableList<String> getUsers() {
+        return users;
+    }
+
+    public void add(String user) {
+        pending.add(new Change(Change.ADD, Collections.singletonList(user)));
+    }
+
+    public void remove(String user) {
+        pending.add(new Change(Change.REMOVE, Collections.singletonList(user)));
+    }
+
+    // Replaces the whole list, e.g. with a presence snapshot
+    public void replaceAll(Collection<String> snapshot) {
+        pending.add(new Change(Change.REPLACE, new ArrayList<>(snapshot)));
+    }
+
+    // FX thread only: applies everything queued since the last call
+    public void applyPending() {
+        // Net effect of the pulse: the list it starts from (a replacement, or the current one)
+        // and, per user, whether the last change added or removed them
+        List<String> base = users;
+        Map<String, Boolean> changes = new TreeMap<>(ORDER);
+        Change change;
+        while ((change = pending.poll()) != null) {
+            if (change.kind == Change.REPLACE) {
+                TreeSet<String> sorted = new TreeSet<>(ORDER);
+                sorted.addAll(change.users);
+                base = new ArrayList<>(sorted);
+                changes.clear();
+            } else {
+                for (String user : change.users) {
+                    changes.put(user, change.kind == Change.ADD);
+                }
+            }
+        }
+
+        if (base == users && changes.size() == 1) {
+            Map.Entry<String, Boolean> only = changes.entrySet().iterator().next();
+            int index = Collections.binarySearch(users, only.getKey(), ORDER);
+            if (only.getValue() && index < 0) {
+                users.add(-index - 1, only.getKey());
+            } else if (!only.getValue() && index >= 0) {
+                users.remove(index);
+            }
+            return;
+        }
+        if (base == users && changes.isEmpty()) {
+            return;
+        }
+
+        List<String> merged = merge(base, changes);
+        if (!merged.equals(users)) {
+            users.setAll(merged);
+        }
+    }
+
+    // base is sorted; changes is sorted the same way
+    private static List<String> merge(List<String> base, Map<String, Boolean> changes) {
+        List<String> merged = new ArrayList<>(base.size() + changes.size());
+        Iterator<Map.Entry<String, Boolean>> next = changes.entrySet().iterator();
+        Map.Entry<String, Boolean> pendingChange = next.hasNext() ? next.next() : null;
+
+        for (String user : base) {
+            while (pendingChange != null && ORDER.compare(pendingChange.getKey(), user) < 0) {
+                if (pendingChange.getValue()) {
+                    merged.add(pendingChange.getKey());
+                }
+                pendingChange = next.hasNext() ? next.next() : null;
+            }
+            if (pendingChange != null && ORDER.compare(pendingChange.getKey(), user) == 0) {
+                if (pendingChange.getValue()) {
+                    merged.add(user);
+                }
+                pendingChange = next.hasNext() ? next.next() : null;
+            } else {
+                merged.add(user);
+            }
+        }
+        while (pendingChange != null) {
+            if (pendingChange.getValue()) {
+                merged.add(pendingChange.getKey());
+            }
+            pendingChange = next.hasNext() ? next.next() : null;
+        }
+        return merged;
+    }
+
+    private static final class Change {
+        static final int ADD = 0;
+        static final int REMOVE = 1;
+        static final int REPLACE = 2;
+
+        final int kind;
+        final List<String> users;
+
+        Change(int kind, List<String> users) {
+            this.kind = kind;
+            this.users = users;
+        }
+    }
+}
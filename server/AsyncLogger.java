@@ -0,0 +1,175 @@
+package server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Logger that keeps formatting and stdout off the caller's thread. Callers
+// claim a slot in a bounded lock-free ring buffer; one background thread
+// drains it, formats and writes in batches. When the ring is full the entry
+// is dropped and counted rather than blocking the caller.
+public class AsyncLogger {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final DateTimeFormatter LOG_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int MAX_BATCH = 256;
+
+    private final PrintStream out;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    // Per-slot sequence numbers (Vyukov bounded queue): a slot is free for
+    // producer position p when its sequence is p, readable when it is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long head; // written by the writer thread only
+    // Entries before this are out of the ring and written to out; head runs ahead of it while a
+    // batch is being formatted. Written by the writer thread only.
+    private volatile long written;
+    private volatile Level level = Level.INFO;
+    private final Thread writer;
+
+    public AsyncLogger(int capacity, PrintStream out) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Log buffer capacity must be a power of two");
+        }
+
+        this.out = out;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+
+        writer = new Thread(this::drainLoop, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isLoggable(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    // Never blocks; returns false if the entry was filtered or dropped
+    public boolean log(Level level, String message) {
+        if (!isLoggable(level)) {
+            return false;
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), level, message);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, entry);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Waits (briefly) until everything logged so far has been written
+    public void flush() {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(8192);
+        long reportedDrops = 0;
+
+        while (true) {
+            int count = 0;
+            Entry entry;
+            while (count < MAX_BATCH && (entry = poll()) != null) {
+                format(entry, batch);
+                count++;
+            }
+
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.append('[').append(LOG_FORMAT.format(Instant.now())).append("] WARN ")
+                        .append(drops - reportedDrops).append(" log messages dropped (buffer full)\n");
+                reportedDrops = drops;
+            }
+
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            }
+            written = head;
+
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private Entry poll() {
+        long position = head;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        Entry entry = slots.get(index);
+        slots.lazySet(index, null);
+        sequences.lazySet(index, position + mask + 1);
+        head = position + 1;
+        return entry;
+    }
+
+    private static void format(Entry entry, StringBuilder batch) {
+        batch.append('[').append(LOG_FORMAT.format(Instant.ofEpochMilli(entry.timestamp))).append("] ");
+        if (entry.level != Level.INFO) {
+            batch.append(entry.level).append(' ');
+        }
+        batch.append(entry.message).append('\n');
+    }
+
+    private static final class Entry {
+        final long timestamp;
+        final Level level;
+        final String message;
+
+        Entry(long timestamp, Level level, String message) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package server;
+
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ClientHandler for the blocking modes (threads and virtual). Each connection gets a
+// reader task (run) and a writer task (runWriter) on the server's pool; the reader
+// feeds lines or frames through the shared handleJoin/handleLine logic.
+public class BlockingClientHandler extends ClientHandler implements Runnable {
+    private final Transport.Connection connection;
+    private final BufferedInputStream input;
+    private final OutputStream out;
+    private volatile Thread writerThread;
+
+    public BlockingClientHandler(Transport.Connection connection, SecretKeySpec key, ClientRegistry registry) throws IOException {
+        super(key, registry);
+        this.connection = connection;
+
+        // No read timeout: dead and idle peers are found by the server's idle timer (checkIdle)
+
+        this.input = new BufferedInputStream(connection.getInputStream());
+        this.out = connection.getOutputStream();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (negotiateBinary()) {
+                readFrames();
+            } else {
+                readLines();
+            }
+
+        } catch (SocketException e) {
+            if (isRunning()) {
+                ChatServer.log("Client " + getUsername() + " disconnected: " + e.getMessage());
+            }
+        } catch (IOException e) {
+            if (isRunning()) {
+                ChatServer.log("IO error with client " + getUsername() + ": " + e.getMessage());
+            }
+        } catch (Exception e) {
+            ChatServer.log(AsyncLogger.Level.ERROR, "Unexpected error with client " + getUsername() + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            cleanup();
+        }
+    }
+
+    // A binary-capable client opens with WireProtocol.HELLO; anything else is a legacy text client
+    private boolean negotiateBinary() throws IOException {
+        input.mark(WireProtocol.HELLO.length);
+        if (input.read() != WireProtocol.HELLO[0]) {
+            input.reset();
+            return false;
+        }
+
+        input.reset();
+        byte[] hello = new byte[WireProtocol.HELLO.length];
+        new DataInputStream(input).readFully(hello);
+        if (!WireProtocol.isHello(hello)) {
+            throw new IOException("Unknown protocol preface");
+        }
+
+        acceptBinary();
+        return true;
+    }
+
+    private void readLines() throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+
+        // First message is the encrypted username
+        String encryptedUsername = in.readLine();
+        if (encryptedUsername == null) {
+            ChatServer.log("Client disconnected before sending username");
+            return;
+        }
+
+        handleJoin(encryptedUsername);
+
+        String line;
+        while (isRunning() && (line = in.readLine()) != null) {
+            throttle(line.length() + 1);
+            if (!handleLine(line)) {
+                break; // Connection is likely broken
+            }
+        }
+    }
+
+    private void readFrames() throws Exception {
+        DataInputStream data = new DataInputStream(input);
+
+        // First frame is the encrypted username
+        WireProtocol.Packet packet = WireProtocol.readPacket(data);
+        if (packet == null) {
+            ChatServer.log("Client disconnected before sending username");
+            return;
+        }
+
+        handleJoin(packet);
+
+        while (isRunning() && (packet = WireProtocol.readPacket(data)) != null) {
+            throttle(WireProtocol.HEADER_LENGTH + packet.body.length);
+            if (!handlePacket(packet)) {
+                break; // Connection is likely broken
+            }
+        }
+    }
+
+    // Holding off here stops reading the socket, so TCP pushes back on the client
+    private void throttle(int bytes) throws InterruptedException {
+        long wait = admit(bytes);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // Writer loop, run on its own pool thread next to run(). After the first frame it keeps
+    // gathering for up to the flush window (or until the byte budget is reached) so a burst
+    // goes out in one write instead of one per frame.
+    public void runWriter() {
+        writerThread = Thread.currentThread();
+        ServerConfig config = ChatServer.getConfig();
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushWindowMs());
+        int flushBytes = config.getFlushBytes();
+        OutputStream buffered = new BufferedOutputStream(out, flushBytes);
+        OutboundQueue outbound = getOutbound();
+        List<Frame> batch = new ArrayList<>();
+
+        try {
+            while (isRunning()) {
+                Frame frame = outbound.take();
+                long deadline = System.nanoTime() + windowNanos;
+                int pending = 0;
+
+                while (frame != null) {
+                    byte[] bytes = frame.bytes(getWireFormat());
+                    buffered.write(bytes);
+                    batch.add(frame);
+                    pending += bytes.length;
+                    if (pending >= flushBytes) {
+                        break;
+                    }
+
+                    long wait = deadline - System.nanoTime();
+                    frame = wait > 0 ? outbound.poll(wait, TimeUnit.NANOSECONDS) : outbound.poll();
+                }
+                buffered.flush();
+
+                Metrics.MESSAGES_OUT.add(batch.size());
+                Metrics.BYTES_OUT.add(pending);
+                for (Frame written : batch) {
+                    written.written();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed while waiting for frames
+        } catch (IOException e) {
+            if (isRunning()) {
+                ChatServer.log(AsyncLogger.Level.WARN, "Failed to send message to " + getUsername() + ": " + e.getMessage());
+            }
+            // The reader sees the closed connection and runs cleanup()
+            close();
+        } finally {
+            // Neither the batch that didn't make it out nor what is still queued will be written
+            for (Frame unsent : batch) {
+                unsent.written();
+            }
+            outbound.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        markClosed();
+
+        Thread writer = writerThread;
+        if (writer != null && writer != Thread.currentThread()) {
+            writer.interrupt();
+        }
+
+        try {
+            input.close();
+        } catch (IOException e) {
+            ChatServer.log("Error closing input stream for " + getUsername() + ": " + e.getMessage());
+        }
+
+        try {
+            out.close();
+        } catch (Exception e) {
+            ChatServer.log("Error closing output stream for " + getUsername() + ": " + e.getMessage());
+        }
+
+        try {
+            if (connection.isOpen()) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            ChatServer.log("Error closing connection for " + getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isRunning() && connection.isOpen();
+    }
+
+    @Override
+    public String getClientInfo() {
+        return getUsername() + " (" + connection.getRemoteAddress() + ")";
+    }
+}
@@ -1,63 +1,81 @@
 package server;
 
 import util.AESUtil;
+import util.WireProtocol;
 
 import javax.crypto.spec.SecretKeySpec;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatServer {
 
-    private static final int PORT = 1234;
-    private static final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+    private static final ClientRegistry clients = new ClientRegistry();
+    private static final RoomRegistry rooms = new RoomRegistry();
+    private static final int LOG_BUFFER_SIZE = 8192;
+    // Idle checks fire within 100 ms of when they are due; one turn of the wheel is ~51 s
+    private static final int IDLE_TICK_MS = 100;
+    private static final int IDLE_WHEEL_SIZE = 512;
+    private static final int STOP_TIMEOUT_S = 10;
     private static SecretKeySpec key;
-    private static ServerSocket serverSocket;
+    // Where the blocking modes accept clients from: a SocketTransport, or whatever start() was given
+    private static Transport transport;
     private static ExecutorService threadPool;
-    private static final DateTimeFormatter LOG_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static NioChatServer nioServer;
+    private static MessageJournal journal;
+    private static PresenceCoalescer presence;
+    // Numbers chat messages and keeps the latest for resuming sessions
+    private static ResumeBuffer resumeBuffer = new ResumeBuffer(1, 0);
+    private static SessionStore sessions;
+    // Heartbeats and idle timeouts for every connection
+    private static HashedWheelTimer idleTimer;
+    // Link to the other nodes in cluster mode; null when running alone
+    private static ClusterNode cluster;
+    // Deliveries per second for the whole server; senders who overdraw it stop being read for a while
+    private static TokenBucket fanoutBudget;
+    private static ServerConfig config = new ServerConfig();
+    // Orders server-wide broadcasts (presence); room messages are ordered by their room's own lock
+    private static final ReentrantLock broadcastLock = new ReentrantLock();
+    private static final AsyncLogger logger = new AsyncLogger(LOG_BUFFER_SIZE, System.out);
 
     public static void main(String[] args) {
-        // Initialize thread pool for handling clients
-        threadPool = Executors.newCachedThreadPool();
+        ServerConfig serverConfig = ServerConfig.fromArgs(args);
 
         try {
             System.out.print("Enter shared password: ");
             BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
             String password = consoleReader.readLine();
-            key = AESUtil.getKeyFromPassword(password);
+            init(serverConfig, AESUtil.getKeyFromPassword(password));
 
             // Add shutdown hook for graceful server shutdown
             Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::shutdown));
 
-            serverSocket = new ServerSocket(PORT);
-            log("Server started on port " + PORT + ". Waiting for clients...");
-
-            while (!serverSocket.isClosed()) {
-                try {
-                    Socket socket = serverSocket.accept();
-                    log("New client connection from: " + socket.getRemoteSocketAddress());
-
-                    // Handle client in thread pool
-                    ClientHandler handler = new ClientHandler(socket, key, clients);
-                    clients.add(handler);
-                    threadPool.submit(handler);
-
-                } catch (IOException e) {
-                    if (!serverSocket.isClosed()) {
-                        log("Error accepting client connection: " + e.getMessage());
-                    }
-                }
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                nioServer = new NioChatServer(config.getPort(), config.getEventLoops(), key, clients);
+                nioServer.run();
+                return;
             }
 
+            // Initialize thread pool for handling clients
+            threadPool = createThreadPool(config.getMode());
+            transport = new SocketTransport(config.getPort());
+            acceptClients();
+
         } catch (Exception e) {
             log("Server exception: " + e.getMessage());
             e.printStackTrace();
@@ -66,86 +84,831 @@ public class ChatServer {
         }
     }
 
+    // Runs the server inside this JVM, without the password prompt: clients come from the
+    // given transport (a LoopbackTransport in tests) and are accepted on a background thread.
+    // Only the blocking modes can use a transport; NIO mode owns its sockets. Undo with stop().
+    public static synchronized void start(ServerConfig serverConfig, SecretKeySpec sharedKey, Transport clientTransport) {
+        if (serverConfig.getMode() == ServerConfig.Mode.NIO) {
+            throw new IllegalArgumentException("NIO mode serves its own sockets; use threads or virtual mode with a transport");
+        }
+        if (transport != null) {
+            throw new IllegalStateException("Server already running");
+        }
+
+        try {
+            init(serverConfig, sharedKey);
+        } catch (IOException e) {
+            shutdown();
+            throw new IllegalStateException("Server failed to start: " + e.getMessage(), e);
+        }
+        threadPool = createThreadPool(config.getMode());
+        transport = clientTransport;
+
+        Thread acceptor = new Thread(ChatServer::acceptClients, "acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Closes every connection and the transport, and resets the server so start() can run
+    // again. Returns once the connections' threads have finished (or STOP_TIMEOUT_S has passed).
+    public static synchronized void stop() throws InterruptedException {
+        ExecutorService pool = threadPool;
+        shutdown();
+        if (pool != null && !pool.awaitTermination(STOP_TIMEOUT_S, TimeUnit.SECONDS)) {
+            log(AsyncLogger.Level.WARN, "Client threads still running " + STOP_TIMEOUT_S + "s after stop");
+        }
+    }
+
+    // Everything but the listening side: journal, sessions, cluster, metrics, limits and timers
+    private static void init(ServerConfig serverConfig, SecretKeySpec sharedKey) throws IOException {
+        config = serverConfig;
+        key = sharedKey;
+        logger.setLevel(config.getLogLevel());
+
+        if (config.getJournalDir() != null) {
+            journal = new MessageJournal(Paths.get(config.getJournalDir()), config.getJournalSegmentBytes(),
+                    config.getJournalRetainBytes(), config.getReplayCount(), key);
+            log("Message journal opened in " + config.getJournalDir() + " at sequence " + journal.getLastSequence());
+        }
+        // Sequence numbers carry on from the journal so they never repeat across restarts
+        resumeBuffer = new ResumeBuffer(config.getResumeBuffer(), journal != null ? journal.getLastSequence() : 0);
+
+        if (config.getResumeWindowMs() > 0) {
+            sessions = new SessionStore(config.getResumeWindowMs(),
+                    expired -> broadcastPresence(expired.getUsername(), false));
+        }
+
+        if (config.getClusterPort() > 0) {
+            cluster = new ClusterNode(config.getNodeId(), config.getClusterPort(), config.getPeers(), key,
+                    config.getRelayLogSize(), config.getPeerGraceMs());
+            cluster.start();
+        }
+
+        registerGauges();
+        Metrics.registerMBean();
+        if (config.getMetricsIntervalSeconds() > 0) {
+            Metrics.startDump(config.getMetricsIntervalSeconds());
+        }
+
+        if (config.getFanoutBudget() > 0) {
+            fanoutBudget = new TokenBucket(config.getFanoutBudget(), config.getFanoutBudget());
+        }
+
+        if (config.getHeartbeatMs() > 0 || config.getIdleTimeoutMs() > 0) {
+            idleTimer = new HashedWheelTimer("idle-timer", IDLE_TICK_MS, IDLE_WHEEL_SIZE);
+        }
+
+        if (config.getPresenceWindowMs() > 0) {
+            presence = new PresenceCoalescer(config.getPresenceWindowMs(), ChatServer::publishPresenceDigest);
+        }
+    }
+
+    // Accept loop of the blocking modes: a reader and a writer task per connection
+    private static void acceptClients() {
+        Transport listening = transport;
+        log("Server started on " + listening.describe() + ". Waiting for clients...");
+
+        while (listening.isOpen()) {
+            try {
+                Transport.Connection connection = listening.accept();
+                log("New client connection from: " + connection.getRemoteAddress());
+
+                // Handle client in thread pool
+                BlockingClientHandler handler = new BlockingClientHandler(connection, key, clients);
+                addClient(handler);
+                threadPool.submit(handler);
+                threadPool.submit(handler::runWriter);
+
+            } catch (IOException e) {
+                if (listening.isOpen()) {
+                    log("Error accepting client connection: " + e.getMessage());
+                }
+            } catch (RejectedExecutionException e) {
+                break; // Shut down between accept and submit
+            }
+        }
+    }
+
+    private static void registerGauges() {
+        Metrics.gauge("activeClients", clients::size);
+        Metrics.gauge("threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        Metrics.gauge("outboundBacklog", () -> {
+            long total = 0;
+            for (ClientHandler client : clients) {
+                total += client.getOutboundQueueDepth();
+            }
+            return total;
+        });
+        Metrics.gauge("maxClientBacklog", () -> {
+            long max = 0;
+            for (ClientHandler client : clients) {
+                max = Math.max(max, client.getOutboundQueueDepth());
+            }
+            return max;
+        });
+        Metrics.gauge("droppedFrames", () -> {
+            long total = 0;
+            for (ClientHandler client : clients) {
+                total += client.getDroppedFrames();
+            }
+            return total;
+        });
+        Metrics.gauge("droppedLogLines", logger::getDroppedCount);
+    }
+
+    private static ExecutorService createThreadPool(ServerConfig.Mode mode) {
+        if (mode == ServerConfig.Mode.VIRTUAL) {
+            // Looked up reflectively so the server still builds and runs on Java 8-20
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                log("Running client handlers on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log("Virtual threads need Java 21+, falling back to platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    static void addClient(ClientHandler client) {
+        clients.add(client);
+        if (idleTimer != null) {
+            client.checkIdle();
+        }
+    }
+
+    static void scheduleIdleCheck(ClientHandler client, long delayMs) {
+        if (idleTimer != null) {
+            idleTimer.schedule(client::checkIdle, delayMs);
+        }
+    }
+
+    // A resumable session notes where it stopped receiving private messages (before leaving the
+    // username index) and each room's messages (under the room's lock), for resumeSession
     public static void removeClient(ClientHandler client) {
-        clients.remove(client);
+        DeliveryLog deliveryLog = client.getDeliveryLog();
+        if (deliveryLog == null) {
+            clients.remove(client);
+            rooms.leaveAll(client);
+        } else {
+            deliveryLog.stoppedDirect(resumeBuffer.getLastSequence());
+            clients.remove(client);
+            for (String name : client.getRooms()) {
+                RoomRegistry.Room room = rooms.get(name);
+                if (room == null) {
+                    continue;
+                }
+                room.getDeliveryLock().lock();
+                try {
+                    rooms.leave(name, client);
+                    deliveryLog.stoppedRoom(name, resumeBuffer.getLastSequence());
+                } finally {
+                    room.getDeliveryLock().unlock();
+                }
+            }
+        }
         log("Client removed. Active clients: " + clients.size());
     }
 
     // Fixed: Now includes sender in broadcast so they can see their own messages
     public static void broadcastToAll(String message, ClientHandler sender) {
+        long start = System.nanoTime();
+        Frame frame = encryptForBroadcast(message);
+        if (frame == null) {
+            return;
+        }
+
+        broadcastLock.lock();
+        try {
+            deliver(clients, frame);
+        } finally {
+            broadcastLock.unlock();
+        }
+        Metrics.FANOUT.recordSince(start);
+    }
+
+    // Sends a chat message to the subscribers of one room only (on every node of a cluster).
+    // Returns false if the sender isn't in the room.
+    public static boolean publishToRoom(String roomName, String message, ClientHandler sender) {
+        RoomRegistry.Room room = rooms.get(roomName);
+        if (room == null || !room.contains(sender)) {
+            return false;
+        }
+
+        deliverToRoom(room, message, sender.getReceivedAt());
+        if (cluster != null) {
+            cluster.relayRoomMessage(room.getName(), message);
+        }
+        chargeFanout(sender, room.size());
+        return true;
+    }
+
+    // A room message relayed by another node, for whoever is in that room here
+    static void deliverRelayedRoomMessage(String roomName, String message) {
+        RoomRegistry.Room room = rooms.get(roomName);
+        if (room != null) {
+            deliverToRoom(room, message, 0);
+        }
+    }
+
+    // The message gets the next sequence number (and lobby messages go to the journal) under
+    // the room's lock, so numbers and journal order match delivery order. receivedAt (0 if
+    // unknown) starts the message's end-to-end latency measurement.
+    private static void deliverToRoom(RoomRegistry.Room room, String message, long receivedAt) {
+        long start = System.nanoTime();
+        Frame frame = encryptSequenced(room.isLobby() ? message : "[#" + room.getName() + "] " + message);
+        if (frame == null) {
+            return;
+        }
+        if (receivedAt != 0) {
+            frame.beginDelivery(receivedAt);
+        }
+
+        room.getDeliveryLock().lock();
+        try {
+            resumeBuffer.recordRoomMessage(frame, room.getName());
+            if (room.isLobby() && journal != null) {
+                journal.append(frame);
+            }
+            deliver(room, frame);
+        } finally {
+            room.getDeliveryLock().unlock();
+        }
+        frame.endDelivery();
+        Metrics.FANOUT.recordSince(start);
+    }
+
+    // Private message: one lookup in the username index and one encryption, shared by every
+    // session of the recipient and of the sender. Returns false if the recipient is offline;
+    // a recipient whose session is suspended gets it when they resume. In a cluster the
+    // message also goes to the other nodes, for sessions of either user there.
+    public static boolean sendDirectMessage(ClientHandler sender, String recipient, String text) {
+        Set<ClientHandler> recipientSessions = clients.findByUsername(recipient);
+        if (recipientSessions.isEmpty() && (sessions == null || !sessions.isSuspended(recipient))
+                && (cluster == null || !cluster.isOnlineOnPeers(recipient))) {
+            return false;
+        }
+        if (cluster != null) {
+            cluster.relayDirectMessage(sender.getUsername(), recipient, text);
+        }
+
+        Frame frame = encryptSequenced(directMessageText(sender.getUsername(), recipient, text));
+        if (frame == null) {
+            return true;
+        }
+
+        resumeBuffer.recordDirectMessage(frame, sender.getUsername(), recipient);
+        sendDirect(recipientSessions, frame);
+        int deliveries = recipientSessions.size();
+        if (!recipient.equals(sender.getUsername())) {
+            Set<ClientHandler> senderSessions = clients.findByUsername(sender.getUsername());
+            sendDirect(senderSessions, frame);
+            deliveries += senderSessions.size();
+        }
+        chargeFanout(sender, deliveries);
+        return true;
+    }
+
+    // A peer fell so far behind that some of this node's events never reached it; the reverse
+    // of this is logged on the node that couldn't send them
+    static void onRelayGap(String peer, long lost) {
+        log(AsyncLogger.Level.WARN, "Lost " + lost + " events relayed from cluster peer " + peer);
+        broadcastToAll("[Server] Up to " + lost + " messages from server " + peer + " could not be delivered", null);
+    }
+
+    // A direct message relayed by another node, for any sessions of the two users here
+    static void deliverRelayedDirectMessage(String from, String to, String text) {
+        Set<ClientHandler> recipientSessions = clients.findByUsername(to);
+        Set<ClientHandler> senderSessions = from.equals(to) ? Collections.<ClientHandler>emptySet() : clients.findByUsername(from);
+        boolean suspended = sessions != null && (sessions.isSuspended(to) || sessions.isSuspended(from));
+        if (recipientSessions.isEmpty() && senderSessions.isEmpty() && !suspended) {
+            return;
+        }
+
+        Frame frame = encryptSequenced(directMessageText(from, to, text));
+        if (frame == null) {
+            return;
+        }
+        resumeBuffer.recordDirectMessage(frame, from, to);
+        sendDirect(recipientSessions, frame);
+        sendDirect(senderSessions, frame);
+    }
+
+    private static String directMessageText(String from, String to, String text) {
+        return "🔒 " + from + " → " + to + ": " + text;
+    }
+
+    // Bills the sender for a message's deliveries against the server-wide budget. Over
+    // budget, the sender's connection isn't read again until the budget has recovered.
+    private static void chargeFanout(ClientHandler sender, int deliveries) {
+        if (fanoutBudget != null) {
+            sender.pauseReads(fanoutBudget.acquire(deliveries));
+        }
+    }
+
+    private static void sendDirect(Set<ClientHandler> sessions, Frame frame) {
+        for (ClientHandler session : sessions) {
+            try {
+                session.sendFrame(frame);
+            } catch (Exception e) {
+                log(AsyncLogger.Level.WARN, "Failed to send direct message to " + session.getUsername() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Returns false if the name isn't a valid room name
+    public static boolean joinRoom(ClientHandler client, String roomName) {
+        String name = RoomRegistry.normalize(roomName);
+        if (name == null) {
+            return false;
+        }
+
+        if (rooms.join(name, client)) {
+            client.addRoom(name);
+            announceInRoom(name, "➡️ " + client.getUsername() + " joined #" + name);
+        }
+        return true;
+    }
+
+    // Returns false if the client wasn't in the room
+    public static boolean leaveRoom(ClientHandler client, String roomName) {
+        String name = RoomRegistry.normalize(roomName);
+        if (name == null || !rooms.leave(name, client)) {
+            return false;
+        }
+
+        client.removeRoom(name);
+        announceInRoom(name, "⬅️ " + client.getUsername() + " left #" + name);
+        return true;
+    }
+
+    private static void announceInRoom(String name, String notice) {
+        RoomRegistry.Room room = rooms.get(name);
+        if (room == null || room.isLobby()) {
+            return; // The lobby already gets the server-wide joined/left lines
+        }
+
+        Frame frame = encryptForBroadcast("[#" + name + "] " + notice);
+        if (frame == null) {
+            return;
+        }
+
+        room.getDeliveryLock().lock();
+        try {
+            deliver(room, frame);
+        } finally {
+            room.getDeliveryLock().unlock();
+        }
+    }
+
+    // Everyone shares the key, so encrypt once and write the same bytes to all
+    private static Frame encryptForBroadcast(String message) {
+        try {
+            return Frame.encrypt(message, key);
+        } catch (Exception e) {
+            log(AsyncLogger.Level.ERROR, "Failed to encrypt broadcast message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Frame encryptSequenced(String message) {
+        try {
+            return Frame.encryptSequenced(message, key);
+        } catch (Exception e) {
+            log(AsyncLogger.Level.ERROR, "Failed to encrypt message: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Caller holds the lock that orders this set of recipients
+    private static void deliver(Iterable<ClientHandler> recipients, Frame frame) {
+        deliver(recipients, frame, frame);
+    }
+
+    // Sends lineFrame to line-protocol clients and binaryFrame to binary ones; a null frame skips that group
+    private static void deliver(Iterable<ClientHandler> recipients, Frame lineFrame, Frame binaryFrame) {
         List<ClientHandler> disconnectedClients = new ArrayList<>();
 
-        synchronized (clients) {
+        for (ClientHandler client : recipients) {
+            // Clients that haven't sent a username yet may still be negotiating their wire format
+            if (client.getUsername() == null) {
+                continue;
+            }
+
+            Frame frame = client.getWireFormat() == WireProtocol.Format.BINARY ? binaryFrame : lineFrame;
+            if (frame == null) {
+                continue;
+            }
+
+            // CHANGED: Removed the condition that excluded sender
+            // Now sender also receives their own messages
+            try {
+                client.sendFrame(frame);
+            } catch (Exception e) {
+                log(AsyncLogger.Level.WARN, "Failed to send message to client: " + e.getMessage());
+                disconnectedClients.add(client);
+            }
+        }
+
+        // Remove disconnected clients
+        for (ClientHandler client : disconnectedClients) {
+            clients.remove(client);
+        }
+    }
+
+    // A user came online on this node or went offline here. Other nodes are told; local
+    // clients only hear about it if it changes whether the user is online anywhere.
+    public static void broadcastPresence(String username, boolean joined) {
+        // A user with another session still open hasn't left as far as user lists go
+        if (!joined && clients.isOnline(username)) {
+            return;
+        }
+
+        if (cluster != null) {
+            cluster.relayPresence(username, joined);
+            if (cluster.isOnlineOnPeers(username)) {
+                return; // Listed already, and still listed after this leave
+            }
+        }
+        announcePresence(username, joined);
+    }
+
+    // The user came online on the first other node, or went offline on the last one
+    static void onPeerPresenceChanged(String username, boolean online) {
+        if (clients.isOnline(username) || (sessions != null && sessions.isSuspended(username))) {
+            return; // Online here either way
+        }
+        announcePresence(username, online);
+    }
+
+    // Joined/left events are gathered into one digest per presence window
+    private static void announcePresence(String username, boolean joined) {
+        PresenceCoalescer coalescer = presence;
+        if (coalescer != null) {
+            coalescer.record(username, joined);
+        } else {
+            publishPresenceDigest(joined ? Collections.singletonList(username) : Collections.<String>emptyList(),
+                    joined ? Collections.<String>emptyList() : Collections.singletonList(username));
+        }
+    }
+
+    // Sends one window's worth of joins and leaves to everyone on the low-priority lane, so
+    // chat messages queued at the same time go out first. They are never dropped there.
+    // Binary clients get one delta frame per kind of change; line clients get the familiar
+    // text line for every user, which is what they parse their user list from.
+    private static void publishPresenceDigest(List<String> joined, List<String> left) {
+        List<Frame> binaryFrames = new ArrayList<>();
+        binaryFrames.addAll(encryptPresence(WireProtocol.TYPE_PRESENCE_DELTA, WireProtocol.PRESENCE_JOINED, joined));
+        binaryFrames.addAll(encryptPresence(WireProtocol.TYPE_PRESENCE_DELTA, WireProtocol.PRESENCE_LEFT, left));
+
+        List<Frame> lineFrames = new ArrayList<>();
+        addPresenceLines(lineFrames, joined, "🟢 ", " has joined the chat");
+        addPresenceLines(lineFrames, left, "🔴 ", " has left the chat");
+
+        List<ClientHandler> disconnectedClients = new ArrayList<>();
+        broadcastLock.lock();
+        try {
             for (ClientHandler client : clients) {
-                // CHANGED: Removed the condition that excluded sender
-                // Now sender also receives their own messages
+                if (client.getUsername() == null) {
+                    continue;
+                }
+
+                List<Frame> frames = client.getWireFormat() == WireProtocol.Format.BINARY ? binaryFrames : lineFrames;
                 try {
-                    client.sendMessage(message);
+                    client.sendPresenceFrames(frames);
                 } catch (Exception e) {
-                    log("Failed to send message to client: " + e.getMessage());
+                    log(AsyncLogger.Level.WARN, "Failed to send presence update to client: " + e.getMessage());
                     disconnectedClients.add(client);
                 }
             }
+        } finally {
+            broadcastLock.unlock();
         }
 
-        // Remove disconnected clients
         for (ClientHandler client : disconnectedClients) {
             clients.remove(client);
         }
     }
 
+    private static void addPresenceLines(List<Frame> frames, List<String> usernames, String icon, String each) {
+        for (String username : usernames) {
+            addIfPresent(frames, encryptForBroadcast(icon + username + each));
+        }
+    }
+
+    private static void addIfPresent(List<Frame> frames, Frame frame) {
+        if (frame != null) {
+            frames.add(frame);
+        }
+    }
+
+    // Presence frames for the given users; very long lists are split to stay under the frame
+    // limit, with everything after the first frame sent as a joined/left delta
+    private static List<Frame> encryptPresence(byte type, byte change, Collection<String> usernames) {
+        List<Frame> frames = new ArrayList<>();
+        if (usernames.isEmpty() && type == WireProtocol.TYPE_PRESENCE_DELTA) {
+            return frames;
+        }
+
+        try {
+            List<String> chunk = new ArrayList<>();
+            int chunkBytes = 0;
+            for (String username : usernames) {
+                int size = 2 + username.length() * 3;
+                if (!chunk.isEmpty() && chunkBytes + size > WireProtocol.MAX_FRAME_LENGTH / 2) {
+                    frames.add(Frame.encrypt(type, WireProtocol.encodePresence(change, chunk), key));
+                    type = WireProtocol.TYPE_PRESENCE_DELTA;
+                    chunk.clear();
+                    chunkBytes = 0;
+                }
+                chunk.add(username);
+                chunkBytes += size;
+            }
+            frames.add(Frame.encrypt(type, WireProtocol.encodePresence(change, chunk), key));
+        } catch (Exception e) {
+            log(AsyncLogger.Level.ERROR, "Failed to encode presence update: " + e.getMessage());
+        }
+        return frames;
+    }
+
     // NEW: Send current user list to a specific client
     public static void sendUserListToClient(ClientHandler newClient) {
-        synchronized (clients) {
+        PresenceCoalescer coalescer = presence;
+        if (coalescer != null) {
+            coalescer.snapshotTaken();
+        }
+        if (newClient.getWireFormat() == WireProtocol.Format.BINARY) {
+            sendPresenceSnapshot(newClient);
+            return;
+        }
+
+        for (ClientHandler client : clients) {
+            if (client != newClient && client.getUsername() != null) {
+                try {
+                    String userJoinMessage = "🟢 " + client.getUsername() + " has joined the chat";
+                    newClient.sendMessage(userJoinMessage);
+                } catch (Exception e) {
+                    log("Failed to send user list to new client: " + e.getMessage());
+                }
+            }
+        }
+        if (cluster != null) {
+            for (String username : cluster.peerUsernames()) {
+                try {
+                    newClient.sendMessage("🟢 " + username + " has joined the chat");
+                } catch (Exception e) {
+                    log("Failed to send user list to new client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Everyone online on this node, suspended sessions included; what other nodes are told
+    static List<String> localUsernames() {
+        Set<String> usernames = new TreeSet<>();
+        for (ClientHandler client : clients) {
+            String username = client.getUsername();
+            if (username != null) {
+                usernames.add(username);
+            }
+        }
+        if (sessions != null) {
+            usernames.addAll(sessions.suspendedUsernames());
+        }
+        return new ArrayList<>(usernames);
+    }
+
+    // One snapshot frame instead of a message per user. Taken under the broadcast lock so no
+    // presence digest can slip in between building the snapshot and queuing it.
+    private static void sendPresenceSnapshot(ClientHandler newClient) {
+        broadcastLock.lock();
+        try {
+            Set<String> usernames = new TreeSet<>();
             for (ClientHandler client : clients) {
-                if (client != newClient && client.getUsername() != null) {
-                    try {
-                        String userJoinMessage = "🟢 " + client.getUsername() + " has joined the chat";
-                        newClient.sendMessage(userJoinMessage);
-                    } catch (Exception e) {
-                        log("Failed to send user list to new client: " + e.getMessage());
+                String username = client.getUsername();
+                if (username != null) {
+                    usernames.add(username);
+                }
+            }
+            if (sessions != null) {
+                usernames.addAll(sessions.suspendedUsernames());
+            }
+            if (cluster != null) {
+                usernames.addAll(cluster.peerUsernames());
+            }
+
+            for (Frame frame : encryptPresence(WireProtocol.TYPE_PRESENCE_SNAPSHOT, WireProtocol.PRESENCE_JOINED, usernames)) {
+                newClient.sendFrame(frame);
+            }
+        } catch (Exception e) {
+            log(AsyncLogger.Level.WARN, "Failed to send user list to " + newClient.getUsername() + ": " + e.getMessage());
+        } finally {
+            broadcastLock.unlock();
+        }
+    }
+
+    public static void joinLobby(ClientHandler newClient) {
+        joinLobby(newClient, 0);
+    }
+
+    // Subscribes a client that just joined to the lobby and queues the history: everything
+    // after lastReceived for a client whose session couldn't be resumed, if the journal still
+    // has it and it would fit in the outbound queue, otherwise the last --replay messages.
+    // Both happen under the lobby's delivery lock, so every lobby message reaches the client
+    // exactly once and in order: either it is in the history or it is delivered after it.
+    public static void joinLobby(ClientHandler newClient, long lastReceived) {
+        RoomRegistry.Room lobby = rooms.lobby();
+        int count = config.getReplayCount();
+
+        lobby.getDeliveryLock().lock();
+        try {
+            if (rooms.join(RoomRegistry.LOBBY, newClient)) {
+                newClient.addRoom(RoomRegistry.LOBBY);
+            }
+            if (journal != null) {
+                boolean caughtUp = lastReceived > 0
+                        && resumeBuffer.getLastSequence() - lastReceived <= config.getOutboundQueueCapacity()
+                        && journal.replay(lastReceived, newClient::sendFrame);
+                if (!caughtUp && count > 0) {
+                    for (Frame frame : journal.recent(count)) {
+                        newClient.sendFrame(frame);
                     }
                 }
             }
+        } catch (IOException e) {
+            log(AsyncLogger.Level.WARN, "Failed to replay history to " + newClient.getUsername() + ": " + e.getMessage());
+        } finally {
+            lobby.getDeliveryLock().unlock();
+        }
+    }
+
+    // Issues the token a binary client can later resume with; null when resuming is off
+    public static String newSessionToken() {
+        return sessions != null ? sessions.newToken() : null;
+    }
+
+    // What a binary session records of its deliveries so it can be resumed; null when resuming is off
+    static DeliveryLog newDeliveryLog() {
+        return sessions != null ? new DeliveryLog(config.getResumeBuffer()) : null;
+    }
+
+    // Keeps a dropped session for the resume window instead of announcing the leave now
+    public static boolean suspendSession(ClientHandler client) {
+        if (sessions == null || client.getSessionToken() == null || client.getUsername() == null) {
+            return false;
+        }
+
+        sessions.suspend(client.getSessionToken(), client.getUsername(), client.getRooms(), client.getCurrentRoom(),
+                client.getDeliveryLog());
+        return true;
+    }
+
+    // Picks up a suspended session: restores its rooms silently and queues exactly the
+    // messages it missed. Returns false (and the client should join afresh) if the token is
+    // unknown or expired, or the gap is no longer in the resume buffer. No presence is
+    // broadcast for a successful resume: to everyone else the user never left. A claimed
+    // session that can't be resumed is announced as left, so the fresh join that follows
+    // doesn't announce a second join of a user who never appeared to leave.
+    public static boolean resumeSession(ClientHandler client, WireProtocol.Resume resume) {
+        SessionStore.Suspended session = sessions != null ? sessions.claim(resume.token) : null;
+        if (session == null) {
+            return false;
+        }
+        if (!session.username.equals(resume.username) || session.deliveryLog == null) {
+            broadcastPresence(session.username, false); // Treat as expired
+            return false;
+        }
+
+        // Hold live traffic until the gap is queued, so nothing is lost or duplicated in between
+        client.beginResume();
+        clients.bindUsername(client);
+        for (String room : session.rooms) {
+            if (rooms.join(room, client)) {
+                client.addRoom(room);
+            }
+        }
+
+        // Only known once the rooms are joined, or a message in between could be missed
+        List<Frame> missed = resumeBuffer.framesMissed(session.deliveryLog, resume.lastSequence, session.username,
+                client.getRooms());
+        if (missed == null) {
+            log("Can't resume " + session.username + ": messages after " + resume.lastSequence + " are gone");
+            // Undo the rooms and username, drop what was held for the client, and end the old session
+            for (String room : new ArrayList<>(client.getRooms())) {
+                rooms.leave(room, client);
+                client.removeRoom(room);
+            }
+            clients.unbindUsername(client);
+            client.abandonResume();
+            broadcastPresence(session.username, false);
+            return false;
+        }
+        client.setDeliveryLog(DeliveryLog.resumedAt(config.getResumeBuffer(), resume.lastSequence));
+
+        try {
+            for (Frame frame : missed) {
+                client.queueFrame(frame);
+            }
+        } catch (IOException e) {
+            log(AsyncLogger.Level.WARN, "Failed to replay missed messages to " + session.username + ": " + e.getMessage());
         }
+        client.restoreCurrentRoom(session.currentRoom);
+        client.finishResume(new HashSet<>(missed));
+        log("User '" + session.username + "' resumed their session (" + missed.size() + " missed messages)");
+        return true;
     }
 
-    private static void shutdown() {
+    private static synchronized void shutdown() {
         log("Shutting down server...");
 
         try {
             // Close all client connections
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    try {
-                        client.close();
-                    } catch (Exception e) {
-                        log("Error closing client: " + e.getMessage());
-                    }
+            for (ClientHandler client : clients) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    log("Error closing client: " + e.getMessage());
                 }
-                clients.clear();
             }
+            clients.clear();
+            rooms.clear();
+
+            if (nioServer != null) {
+                nioServer.close();
+            }
+
+            if (journal != null) {
+                journal.close();
+            }
+
+            if (presence != null) {
+                presence.close();
+            }
+
+            if (sessions != null) {
+                sessions.close();
+            }
+
+            if (idleTimer != null) {
+                idleTimer.close();
+            }
+
+            if (cluster != null) {
+                cluster.close();
+            }
+
+            Metrics.stopDump();
 
             // Shutdown thread pool
             if (threadPool != null) {
                 threadPool.shutdown();
             }
 
-            // Close server socket
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            // Stop accepting
+            if (transport != null && transport.isOpen()) {
+                transport.close();
             }
 
         } catch (Exception e) {
             log("Error during shutdown: " + e.getMessage());
         }
 
+        // Back to the state before init(), for a server started again in the same JVM
+        transport = null;
+        threadPool = null;
+        nioServer = null;
+        journal = null;
+        presence = null;
+        sessions = null;
+        idleTimer = null;
+        cluster = null;
+        fanoutBudget = null;
+
         log("Server shutdown complete.");
+        logger.flush();
     }
 
+    // Enqueues for the background log writer; never blocks on stdout
     public static void log(String message) {
-        String timestamp = LocalDateTime.now().format(LOG_FORMAT);
-        System.out.println("[" + timestamp + "] " + message);
+        logger.log(AsyncLogger.Level.INFO, message);
+    }
+
+    public static void log(AsyncLogger.Level level, String message) {
+        logger.log(level, message);
+    }
+
+    // Guard for log lines that are costly to build, e.g. per-message logging
+    public static boolean isLoggable(AsyncLogger.Level level) {
+        return logger.isLoggable(level);
+    }
+
+    // In-process use without main() (the benchmarks' stand-in clients): the client registry
+    static ClientRegistry getClientRegistry() {
+        return clients;
+    }
+
+    public static ServerConfig getConfig() {
+        return config;
     }
 
     public static int getActiveClientCount() {
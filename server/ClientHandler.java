@@ -1,188 +1,592 @@
-package server;
-
-import util.AESUtil;
-
-import javax.crypto.spec.SecretKeySpec;
-import java.io.*;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.List;
-
-public class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
-    private SecretKeySpec key;
-    private List<ClientHandler> clientList;
-    private String username;
-    private boolean isRunning;
-    private long lastActivity;
-    private boolean userListSent = false; // NEW: Track if user list was sent
-
-    private static final int SOCKET_TIMEOUT = 60000; // INCREASED: 60 seconds instead of 30
-
-    public ClientHandler(Socket socket, SecretKeySpec key, List<ClientHandler> clientList) throws IOException {
-        this.socket = socket;
-        this.key = key;
-        this.clientList = clientList;
-        this.isRunning = true;
-        this.lastActivity = System.currentTimeMillis();
-
-        // Set socket timeout for read operations
-        socket.setSoTimeout(SOCKET_TIMEOUT);
-
-        // ADDED: Keep socket alive to prevent disconnections
-        socket.setKeepAlive(true);
-        socket.setTcpNoDelay(true);
-
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
-    }
-
-    @Override
-    public void run() {
-        try {
-            // First message is the encrypted username
-            String encryptedUsername = in.readLine();
-            if (encryptedUsername == null) {
-                ChatServer.log("Client disconnected before sending username");
-                return;
-            }
-
-            username = AESUtil.decrypt(encryptedUsername, key);
-            ChatServer.log("User '" + username + "' joined the chat");
-
-            // FIXED: Send current user list to new client BEFORE broadcasting join message
-            ChatServer.sendUserListToClient(this);
-            userListSent = true;
-
-            // Broadcast join message to all clients (including this one)
-            String joinMessage = "🟢 " + username + " has joined the chat";
-            ChatServer.broadcastToAll(joinMessage, this);
-            lastActivity = System.currentTimeMillis();
-
-            String line;
-            while (isRunning && (line = in.readLine()) != null) {
-                try {
-                    String decrypted = AESUtil.decrypt(line, key);
-                    ChatServer.log("Message from " + username + ": " + decrypted);
-
-                    // Broadcast message to all clients (including sender)
-                    ChatServer.broadcastToAll(decrypted, this);
-                    lastActivity = System.currentTimeMillis();
-
-                } catch (Exception e) {
-                    ChatServer.log("Failed to decrypt message from " + username + ": " + e.getMessage());
-                    // IMPROVED: Only send error message to the sender, not broadcast
-                    try {
-                        sendMessage("[Server] Failed to decrypt your message");
-                    } catch (Exception sendError) {
-                        ChatServer.log("Failed to send error message to " + username);
-                        break; // Connection is likely broken
-                    }
-                }
-            }
-
-        } catch (SocketTimeoutException e) {
-            ChatServer.log("Client " + username + " timed out - connection idle too long");
-        } catch (SocketException e) {
-            if (isRunning) {
-                ChatServer.log("Client " + username + " disconnected: " + e.getMessage());
-            }
-        } catch (IOException e) {
-            if (isRunning) {
-                ChatServer.log("IO error with client " + username + ": " + e.getMessage());
-            }
-        } catch (Exception e) {
-            ChatServer.log("Unexpected error with client " + username + ": " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            cleanup();
-        }
-    }
-
-    public void sendMessage(String message) throws Exception {
-        if (!isRunning || socket.isClosed()) {
-            throw new IOException("Client connection is closed");
-        }
-
-        try {
-            String encrypted = AESUtil.encrypt(message, key);
-            out.println(encrypted);
-
-            // Check if the message was sent successfully
-            if (out.checkError()) {
-                throw new IOException("Failed to send message - PrintWriter error");
-            }
-
-        } catch (Exception e) {
-            ChatServer.log("Failed to send message to " + username + ": " + e.getMessage());
-            throw e;
-        }
-    }
-
-    private void cleanup() {
-        isRunning = false;
-
-        // Remove from client list
-        ChatServer.removeClient(this);
-
-        // Broadcast leave message if we have a username
-        if (username != null) {
-            String leaveMessage = "🔴 " + username + " has left the chat";
-            ChatServer.broadcastToAll(leaveMessage, this);
-            ChatServer.log("User '" + username + "' left the chat");
-        }
-
-        // Close resources
-        close();
-    }
-
-    public void close() {
-        isRunning = false;
-
-        try {
-            if (in != null) {
-                in.close();
-            }
-        } catch (IOException e) {
-            ChatServer.log("Error closing input stream for " + username + ": " + e.getMessage());
-        }
-
-        try {
-            if (out != null) {
-                out.close();
-            }
-        } catch (Exception e) {
-            ChatServer.log("Error closing output stream for " + username + ": " + e.getMessage());
-        }
-
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            ChatServer.log("Error closing socket for " + username + ": " + e.getMessage());
-        }
-    }
-
-    public String getUsername() {
-        return username;
-    }
-
-    public boolean isConnected() {
-        return isRunning && socket != null && !socket.isClosed() && socket.isConnected();
-    }
-
-    public long getLastActivity() {
-        return lastActivity;
-    }
-
-    public String getClientInfo() {
-        if (socket != null) {
-            return username + " (" + socket.getRemoteSocketAddress() + ")";
-        }
-        return username + " (disconnected)";
-    }
-}
\ No newline at end of file
+package server;
+
+import util.AESUtil;
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// One client's session whatever carries it: the join, commands, rooms and the outbound
+// queue. BlockingClientHandler reads and writes a connection's streams on pool threads;
+// NioClientHandler is driven by a selector event loop.
+public class ClientHandler {
+    private volatile WireProtocol.Format wireFormat = WireProtocol.Format.LINE;
+    // Frames waiting for the writer; broadcasters enqueue here and never touch the socket
+    private final OutboundQueue outbound = newOutboundQueue();
+    private SecretKeySpec key;
+    private ClientRegistry registry;
+    private volatile String username;
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // Where plain chat messages from this client go
+    private volatile String currentRoom = RoomRegistry.LOBBY;
+    // Lets a binary client pick this session up again after its connection drops
+    private volatile String sessionToken;
+    // Live frames held back while a resumed session's missed messages are queued; guarded by this
+    private volatile List<Frame> resumeHold;
+    // Sequenced frames queued for this session, for resuming it; null if it can't be resumed
+    private volatile DeliveryLog deliveryLog;
+    private volatile boolean isRunning;
+    // When the client last sent anything (pongs included); watched by the idle timer
+    private volatile long lastActivity;
+    private boolean userListSent = false; // NEW: Track if user list was sent
+
+    // Per-connection limits, charged for every line or frame before it is decrypted; null = unlimited
+    private final TokenBucket messageLimit = newRateLimit(ChatServer.getConfig().getRateMessages());
+    private final TokenBucket byteLimit = newRateLimit(ChatServer.getConfig().getRateBytes());
+    // System.nanoTime() before which this connection isn't read (fan-out budget overdrawn)
+    private volatile long readsPausedUntil = System.nanoTime();
+    // When the line or frame being handled was read; reader only
+    private long receivedAt;
+
+    private static final Frame PING = Frame.raw(WireProtocol.emptyFrame(WireProtocol.TYPE_PING));
+    private static final Frame PONG = Frame.raw(WireProtocol.emptyFrame(WireProtocol.TYPE_PONG));
+
+    // Subclasses do the I/O
+    protected ClientHandler(SecretKeySpec key, ClientRegistry registry) {
+        this.key = key;
+        this.registry = registry;
+        this.isRunning = true;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    // Charges one line or frame of this many bytes to the rate limits. Returns how long (nanos)
+    // to stop reading before handling it; 0 = go ahead.
+    protected long admit(int bytes) {
+        long wait = 0;
+        if (messageLimit != null) {
+            wait = messageLimit.acquire(1);
+        }
+        if (byteLimit != null) {
+            wait = Math.max(wait, byteLimit.acquire(bytes));
+        }
+        wait = Math.max(wait, readsPausedUntil - System.nanoTime());
+
+        if (wait > 0 && ChatServer.isLoggable(AsyncLogger.Level.DEBUG)) {
+            ChatServer.log(AsyncLogger.Level.DEBUG, "Throttling " + username + " for " + TimeUnit.NANOSECONDS.toMillis(wait) + " ms");
+        }
+        return wait;
+    }
+
+    // Holds off reading from this client for at least the given time
+    void pauseReads(long nanos) {
+        if (nanos > 0) {
+            readsPausedUntil = Math.max(readsPausedUntil, System.nanoTime() + nanos);
+        }
+    }
+
+    private static TokenBucket newRateLimit(int perSecond) {
+        return perSecond > 0 ? new TokenBucket(perSecond, perSecond) : null;
+    }
+
+    // Switches this client to binary frames and acknowledges with the same preface
+    protected void acceptBinary() throws IOException {
+        wireFormat = WireProtocol.Format.BINARY;
+        sendFrame(Frame.raw(WireProtocol.HELLO));
+    }
+
+    // First line from the client is its encrypted username
+    protected void handleJoin(String encryptedUsername) throws Exception {
+        join(AESUtil.decrypt(encryptedUsername, key));
+    }
+
+    protected void handleJoin(WireProtocol.Packet packet) throws Exception {
+        if (packet.type == WireProtocol.TYPE_RESUME) {
+            resume(WireProtocol.decodeResume(WireProtocol.decryptBytes(packet, key)));
+            return;
+        }
+        if (packet.type != WireProtocol.TYPE_JOIN) {
+            throw new IOException("Expected a join frame, got type " + packet.type);
+        }
+        join(WireProtocol.decrypt(packet, key));
+    }
+
+    // A reconnecting client: carry on where it left off if its session is still around,
+    // otherwise it is an ordinary join that catches up on the lobby from the journal
+    private void resume(WireProtocol.Resume resume) throws IOException {
+        this.username = resume.username;
+        if (!ChatServer.resumeSession(this, resume)) {
+            join(resume.username, resume.lastSequence);
+            return;
+        }
+
+        // Presence changes aren't replayed, so bring just this client's user list up to date
+        ChatServer.sendUserListToClient(this);
+        userListSent = true;
+        sendSessionToken(true);
+        lastActivity = System.currentTimeMillis();
+    }
+
+    private void join(String username) {
+        join(username, 0);
+    }
+
+    // lastReceived: the last sequence number the client got before reconnecting, 0 for a new one
+    private void join(String username, long lastReceived) {
+        this.username = username;
+        if (wireFormat == WireProtocol.Format.BINARY) {
+            deliveryLog = ChatServer.newDeliveryLog();
+        }
+        registry.bindUsername(this);
+        ChatServer.log("User '" + username + "' joined the chat");
+
+        // FIXED: Send current user list to new client BEFORE broadcasting join message
+        ChatServer.sendUserListToClient(this);
+        userListSent = true;
+
+        // Then what was said before they arrived, followed by the lobby from here on
+        ChatServer.joinLobby(this, lastReceived);
+
+        // Broadcast join message to all clients (including this one)
+        ChatServer.broadcastPresence(username, true);
+        sendSessionToken(false);
+        lastActivity = System.currentTimeMillis();
+    }
+
+    // Takes the username without the join itself (no rooms, user list, replay or presence);
+    // for stand-in clients that are put straight into the registry
+    void assumeJoined(String username) {
+        this.username = username;
+        registry.bindUsername(this);
+    }
+
+    private void sendSessionToken(boolean resumed) {
+        if (wireFormat != WireProtocol.Format.BINARY) {
+            return; // Line clients can't resume
+        }
+
+        String token = ChatServer.newSessionToken();
+        if (token == null) {
+            return;
+        }
+        try {
+            sendFrame(Frame.encrypt(WireProtocol.TYPE_SESSION, WireProtocol.encodeSession(resumed, token), key));
+            sessionToken = token;
+        } catch (Exception e) {
+            ChatServer.log(AsyncLogger.Level.WARN, "Failed to send session token to " + username + ": " + e.getMessage());
+        }
+    }
+
+    // Returns false if the connection should be dropped
+    protected boolean handleLine(String line) {
+        lastActivity = System.currentTimeMillis();
+        receivedAt = System.nanoTime();
+        Metrics.MESSAGES_IN.increment();
+        Metrics.BYTES_IN.add(line.length() + 1);
+        String decrypted;
+        try {
+            decrypted = AESUtil.decrypt(line, key);
+        } catch (Exception e) {
+            return rejectUndecryptable(e);
+        }
+        Metrics.DECRYPT.recordSince(receivedAt);
+
+        handleMessage(decrypted);
+        return true;
+    }
+
+    // Returns false if the connection should be dropped
+    protected boolean handlePacket(WireProtocol.Packet packet) {
+        lastActivity = System.currentTimeMillis();
+        receivedAt = System.nanoTime();
+        Metrics.MESSAGES_IN.increment();
+        Metrics.BYTES_IN.add(WireProtocol.HEADER_LENGTH + packet.body.length);
+        switch (packet.type) {
+            case WireProtocol.TYPE_PONG:
+                return true; // Only here to refresh lastActivity
+            case WireProtocol.TYPE_PING:
+                try {
+                    sendBackgroundFrame(PONG);
+                } catch (IOException e) {
+                    return false;
+                }
+                return true;
+            case WireProtocol.TYPE_LEAVE:
+                sessionToken = null; // A deliberate quit: announce the leave now rather than suspend
+                return false;
+            default:
+                break;
+        }
+        if (packet.type != WireProtocol.TYPE_MESSAGE) {
+            ChatServer.log("Ignoring frame of unknown type " + packet.type + " from " + username);
+            return true;
+        }
+
+        String decrypted;
+        try {
+            decrypted = WireProtocol.decrypt(packet, key);
+        } catch (Exception e) {
+            return rejectUndecryptable(e);
+        }
+        Metrics.DECRYPT.recordSince(receivedAt);
+
+        handleMessage(decrypted);
+        return true;
+    }
+
+    private void handleMessage(String decrypted) {
+        if (ChatServer.isLoggable(AsyncLogger.Level.DEBUG)) {
+            ChatServer.log(AsyncLogger.Level.DEBUG, "Message from " + username + ": " + decrypted);
+        }
+
+        if (decrypted.startsWith("/")) {
+            handleCommand(decrypted);
+            return;
+        }
+
+        // Send to everyone in the current room (including sender)
+        if (!ChatServer.publishToRoom(currentRoom, decrypted, this)) {
+            reply("[Server] You are not in any room. Use /join <room>");
+        }
+    }
+
+    // Room commands: /join <room>, /leave <room>, /rooms; direct messages: /msg <user> <text>
+    private void handleCommand(String command) {
+        String[] parts = command.trim().split("\\s+", 2);
+        String argument = parts.length > 1 ? parts[1] : "";
+        String reply;
+
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                if (!ChatServer.joinRoom(this, argument)) {
+                    reply = "[Server] Room names are 1-32 letters, digits, '-' or '_'";
+                    break;
+                }
+                currentRoom = RoomRegistry.normalize(argument);
+                reply = "[Server] Now talking in #" + currentRoom;
+                break;
+            case "/leave":
+                if (!ChatServer.leaveRoom(this, argument)) {
+                    reply = "[Server] You are not in " + argument;
+                    break;
+                }
+                if (!rooms.contains(currentRoom)) {
+                    currentRoom = rooms.contains(RoomRegistry.LOBBY) || rooms.isEmpty()
+                            ? RoomRegistry.LOBBY : rooms.iterator().next();
+                }
+                reply = "[Server] Left #" + RoomRegistry.normalize(argument) + ", now talking in #" + currentRoom;
+                break;
+            case "/msg":
+            case "/w":
+                String[] target = argument.split("\\s+", 2);
+                if (target.length < 2 || target[1].isEmpty()) {
+                    reply = "[Server] Usage: /msg <user> <message>";
+                    break;
+                }
+                if (ChatServer.sendDirectMessage(this, target[0], target[1])) {
+                    return; // The sender gets the message itself as confirmation
+                }
+                reply = "[Server] " + target[0] + " is not online";
+                break;
+            case "/rooms":
+                reply = "[Server] Your rooms: #" + String.join(", #", new TreeSet<>(rooms))
+                        + " (talking in #" + currentRoom + ")";
+                break;
+            default:
+                reply = "[Server] Unknown command " + parts[0] + ". Try /join <room>, /leave <room>, /rooms or /msg <user> <message>";
+        }
+
+        reply(reply);
+    }
+
+    private void reply(String notice) {
+        try {
+            sendMessage(notice);
+        } catch (Exception e) {
+            ChatServer.log(AsyncLogger.Level.WARN, "Failed to reply to " + username + ": " + e.getMessage());
+        }
+    }
+
+    private boolean rejectUndecryptable(Exception e) {
+        Metrics.DECRYPT_FAILURES.increment();
+        ChatServer.log(AsyncLogger.Level.WARN, "Failed to decrypt message from " + username + ": " + e.getMessage());
+        // IMPROVED: Only send error message to the sender, not broadcast
+        try {
+            sendMessage("[Server] Failed to decrypt your message");
+        } catch (Exception sendError) {
+            ChatServer.log("Failed to send error message to " + username);
+            return false;
+        }
+        return true;
+    }
+
+    public void sendMessage(String message) throws Exception {
+        if (!isConnected()) {
+            throw new IOException("Client connection is closed");
+        }
+
+        sendFrame(Frame.encrypt(message, key));
+    }
+
+    // Queues an already encrypted frame; broadcasts share one Frame across all recipients
+    public void sendFrame(Frame frame) throws IOException {
+        if (resumeHold != null) {
+            synchronized (this) {
+                if (resumeHold != null) {
+                    resumeHold.add(frame);
+                    return;
+                }
+            }
+        }
+        queueFrame(frame);
+    }
+
+    // sendFrame without the resume hold. Sequenced frames are logged in queue order, under the
+    // log's lock, and also when the connection is already gone, so that a resume can tell
+    // exactly what the client didn't get.
+    void queueFrame(Frame frame) throws IOException {
+        DeliveryLog log = frame.getSequence() != 0 ? deliveryLog : null;
+        if (log == null) {
+            enqueue(frame);
+            return;
+        }
+
+        synchronized (log) {
+            log.add(frame.getSequence());
+            enqueue(frame);
+        }
+    }
+
+    private void enqueue(Frame frame) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Client connection is closed");
+        }
+
+        frame.addRecipient();
+        if (!outbound.offer(frame)) {
+            frame.written();
+            ChatServer.log(AsyncLogger.Level.WARN, "Outbound queue full for " + username + ", disconnecting slow consumer");
+            onOutboundOverflow();
+            throw new IOException("Outbound queue full");
+        }
+        onFrameQueued();
+    }
+
+    synchronized void beginResume() {
+        resumeHold = new ArrayList<>();
+    }
+
+    // Drops the frames held since beginResume, for a resume that didn't go ahead. They were
+    // never queued, so there is nothing to release.
+    synchronized void abandonResume() {
+        resumeHold = null;
+    }
+
+    // Releases the frames held since beginResume, minus those already replayed
+    synchronized void finishResume(Set<Frame> replayed) {
+        List<Frame> held = resumeHold;
+        resumeHold = null;
+        for (Frame frame : held) {
+            if (replayed.contains(frame)) {
+                continue;
+            }
+            try {
+                queueFrame(frame);
+            } catch (IOException e) {
+                return; // Closed again; cleanup takes it from here
+            }
+        }
+    }
+
+    // Queues on the low-priority lane: written only when no chat frames are waiting, and
+    // dropped (oldest first) rather than disconnecting the client when the lane is full
+    public void sendBackgroundFrame(Frame frame) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Client connection is closed");
+        }
+
+        outbound.offerBackground(frame);
+        onFrameQueued();
+    }
+
+    // A presence digest: low priority like sendBackgroundFrame, but never dropped. A client too
+    // far behind to take it is disconnected instead.
+    public void sendPresenceFrames(List<Frame> digest) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("Client connection is closed");
+        }
+
+        if (!outbound.offerPresence(digest)) {
+            ChatServer.log(AsyncLogger.Level.WARN, "Presence updates backed up for " + username + ", disconnecting slow consumer");
+            onOutboundOverflow();
+            throw new IOException("Presence queue full");
+        }
+        onFrameQueued();
+    }
+
+    // Hook for transports whose writer needs a nudge; the blocking writer is already waiting in take()
+    protected void onFrameQueued() {
+    }
+
+    protected static OutboundQueue newOutboundQueue() {
+        ServerConfig config = ChatServer.getConfig();
+        return new OutboundQueue(config.getOutboundQueueCapacity(), config.getOverflowPolicy());
+    }
+
+    protected OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    protected void onOutboundOverflow() {
+        disconnect();
+    }
+
+    // Drops the connection from any thread. Closing the connection wakes the reader, which
+    // then runs the normal cleanup.
+    protected void disconnect() {
+        close();
+    }
+
+    // Run by the server's idle timer. A binary client that has gone quiet for the heartbeat
+    // interval is pinged; any client silent past the idle timeout (no pong either) is dropped.
+    // Line clients can't answer pings, so once joined they are left to TCP keepalive.
+    // Reschedules itself for the next point at which something could be due.
+    void checkIdle() {
+        if (!isRunning) {
+            return;
+        }
+
+        ServerConfig config = ChatServer.getConfig();
+        long heartbeatMs = config.getHeartbeatMs();
+        long idleTimeoutMs = config.getIdleTimeoutMs();
+        boolean canPing = wireFormat == WireProtocol.Format.BINARY;
+        boolean evictable = idleTimeoutMs > 0 && (canPing || username == null);
+        long idle = System.currentTimeMillis() - lastActivity;
+
+        if (evictable && idle >= idleTimeoutMs) {
+            ChatServer.log("Client " + getClientInfo() + " timed out - nothing received for " + idle + " ms");
+            disconnect();
+            return;
+        }
+
+        long nextCheck = Long.MAX_VALUE;
+        if (heartbeatMs > 0 && canPing) {
+            if (idle >= heartbeatMs) {
+                try {
+                    sendBackgroundFrame(PING);
+                } catch (IOException e) {
+                    return; // Already closing
+                }
+                nextCheck = heartbeatMs;
+            } else {
+                nextCheck = heartbeatMs - idle;
+            }
+        }
+        if (evictable) {
+            nextCheck = Math.min(nextCheck, idleTimeoutMs - idle);
+        }
+        if (nextCheck != Long.MAX_VALUE) {
+            ChatServer.scheduleIdleCheck(this, nextCheck);
+        }
+    }
+
+    protected void cleanup() {
+        isRunning = false;
+
+        // Remove from client list
+        ChatServer.removeClient(this);
+
+        // Broadcast leave message if we have a username, unless the session can still be resumed
+        if (username != null) {
+            if (ChatServer.suspendSession(this)) {
+                ChatServer.log("User '" + username + "' disconnected, session kept for resuming");
+            } else {
+                ChatServer.broadcastPresence(username, false);
+                ChatServer.log("User '" + username + "' left the chat");
+            }
+        }
+
+        // Close resources
+        close();
+        outbound.clear();
+    }
+
+    // Subclasses also close their connection
+    public void close() {
+        isRunning = false;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Rooms this client is subscribed to; kept in step by ChatServer.joinRoom/leaveRoom
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
+
+    void restoreCurrentRoom(String room) {
+        currentRoom = room;
+    }
+
+    DeliveryLog getDeliveryLog() {
+        return deliveryLog;
+    }
+
+    void setDeliveryLog(DeliveryLog deliveryLog) {
+        this.deliveryLog = deliveryLog;
+    }
+
+    String getSessionToken() {
+        return sessionToken;
+    }
+
+    void addRoom(String room) {
+        rooms.add(room);
+    }
+
+    void removeRoom(String room) {
+        rooms.remove(room);
+    }
+
+    public WireProtocol.Format getWireFormat() {
+        return wireFormat;
+    }
+
+    protected SecretKeySpec getKey() {
+        return key;
+    }
+
+    protected boolean isRunning() {
+        return isRunning;
+    }
+
+    protected void markClosed() {
+        isRunning = false;
+    }
+
+    public boolean isConnected() {
+        return isRunning;
+    }
+
+    // Chat messages from this client are timed from here (System.nanoTime()); reader thread only
+    long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public int getOutboundQueueDepth() {
+        return outbound.size();
+    }
+
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public String getClientInfo() {
+        return username;
+    }
+}
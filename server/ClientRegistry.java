@@ -0,0 +1,94 @@
+package server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Concurrent set of connected clients with an index by username. Adds and
+// removes are O(1) and lock-free for readers; iteration is weakly consistent,
+// so a broadcast never blocks (or is blocked by) joins and leaves.
+public class ClientRegistry implements Iterable<ClientHandler> {
+    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    // A user may be logged in from several sessions at once
+    private final ConcurrentHashMap<String, Set<ClientHandler>> byUsername = new ConcurrentHashMap<>();
+
+    public void add(ClientHandler client) {
+        clients.add(client);
+    }
+
+    // Call once the client's username is known. The membership check runs inside compute,
+    // so it can't interleave with remove()'s computeIfPresent for the same name: either
+    // remove() has already taken the client out of clients, or it unbinds it afterwards.
+    public void bindUsername(ClientHandler client) {
+        String username = client.getUsername();
+        if (username == null) {
+            return;
+        }
+
+        byUsername.compute(username, (name, sessions) -> {
+            if (!clients.contains(client)) {
+                return sessions; // Removed already; may leave the name unmapped (null)
+            }
+            if (sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+            }
+            sessions.add(client);
+            return sessions;
+        });
+    }
+
+    // Undoes bindUsername; the client stays registered
+    public void unbindUsername(ClientHandler client) {
+        String username = client.getUsername();
+        if (username == null) {
+            return;
+        }
+
+        byUsername.computeIfPresent(username, (name, sessions) -> {
+            sessions.remove(client);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    public boolean remove(ClientHandler client) {
+        if (!clients.remove(client)) {
+            return false;
+        }
+
+        String username = client.getUsername();
+        if (username != null) {
+            byUsername.computeIfPresent(username, (name, sessions) -> {
+                sessions.remove(client);
+                return sessions.isEmpty() ? null : sessions;
+            });
+        }
+        return true;
+    }
+
+    // All sessions of a user, or an empty set if they aren't connected. A copy, so a session
+    // removed after the lookup still gets what was looked up for it (resume relies on that).
+    public Set<ClientHandler> findByUsername(String username) {
+        Set<ClientHandler> sessions = byUsername.get(username);
+        return sessions == null ? Collections.emptySet() : new HashSet<>(sessions);
+    }
+
+    public boolean isOnline(String username) {
+        return byUsername.containsKey(username);
+    }
+
+    @Override
+    public Iterator<ClientHandler> iterator() {
+        return Collections.unmodifiableSet(clients).iterator();
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public void clear() {
+        clients.clear();
+        byUsername.clear();
+    }
+}
@@ -0,0 +1,655 @@
+package server;
+
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Joins this server to its peers so that users on any node see one chat. Each node
+// connects out to every peer in --peers and sends down that link what happens
+// locally: room messages, direct messages, and users coming and going, once per
+// peer. What arrives on the links peers opened to us is delivered to local clients
+// only, never passed on, so every node has to list every other (a full mesh).
+//
+// Relayed events are numbered per node. A receiver drops any number it has already
+// seen from that node, and on reconnect tells the sender the last one it got, so a
+// link that breaks mid-write resends from there without duplicates. Presence is
+// resynchronised as a whole list on every (re)connect instead of being resent. A
+// peer that falls further behind than the relay log is told which events it missed
+// and gets the list again. When a peer's link drops, its users stay listed for a
+// grace period, so a quick reconnect doesn't show them all leaving and rejoining.
+// Idle links carry a keepalive, so a peer whose host vanishes without closing the
+// connection is noticed within a few intervals rather than when TCP gives up.
+public class ClusterNode {
+    // Frame types on peer links; all bodies are encrypted with the shared key
+    static final byte PEER_HELLO = 20;     // opener -> peer: node id, epoch
+    static final byte PEER_ACK = 21;       // peer -> opener: last sequence seen from that epoch, or -1
+    static final byte PEER_SYNC = 22;      // opener -> peer: resume point, more to come?, then users online on the opener
+    static final byte RELAY_ROOM = 23;     // sequence, room, text
+    static final byte RELAY_DIRECT = 24;   // sequence, from, to, text
+    static final byte RELAY_PRESENCE = 25; // sequence, username, joined
+    static final byte PEER_GAP = 26;       // opener -> peer: first and last sequence of events it won't get
+    static final byte PEER_PING = 27;      // opener -> peer: nothing to relay lately, but still here
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int RECONNECT_DELAY_MS = 500;
+    private static final int MAX_RECONNECT_DELAY_MS = 10000;
+    private static final int KEEPALIVE_MS = 5000;
+    // How long an inbound link may stay silent before it is taken for dead
+    private static final int PEER_TIMEOUT_MS = 3 * KEEPALIVE_MS;
+
+    private final String nodeId;
+    // Tells a restarted node apart from the run before it, whose numbers started over
+    private final long epoch = System.currentTimeMillis();
+    private final int port;
+    private final List<String> peers;
+    private final SecretKeySpec key;
+    private final RelayLog relayLog;
+    private final long peerGraceMs;
+    // Peer node id -> users online there; changed under the map's own lock
+    private final Map<String, Set<String>> remoteUsers = new ConcurrentHashMap<>();
+    // Peer node id -> the link it opened to us; a newer link replaces an older one
+    private final Map<String, Socket> inboundLinks = new ConcurrentHashMap<>();
+    // Peer node id -> removal of its users, pending while its link is down. A scheduled
+    // removal only goes ahead if it is still the one here.
+    private final Map<String, Runnable> pendingDrops = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-grace");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Peer node id -> its epoch and the last sequence received; guarded by itself
+    private final Map<String, Seen> seen = new HashMap<>();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private volatile boolean open = true;
+    private ServerSocket serverSocket;
+
+    // peers are "host:port" addresses of the other nodes' cluster ports. relayLogSize events are
+    // kept for peers that fall behind; peerGraceMs is how long a peer's users stay listed after
+    // its link drops.
+    public ClusterNode(String nodeId, int port, List<String> peers, SecretKeySpec key, int relayLogSize, long peerGraceMs) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peers = new ArrayList<>(peers);
+        this.key = key;
+        this.relayLog = new RelayLog(relayLogSize);
+        this.peerGraceMs = peerGraceMs;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        startThread("cluster-accept", this::acceptPeers);
+        for (String peer : peers) {
+            startThread("cluster-link-" + peer, () -> linkTo(peer));
+        }
+        ChatServer.log("Cluster node " + nodeId + " listening on port " + port
+                + (peers.isEmpty() ? "" : ", peers " + String.join(", ", peers)));
+    }
+
+    public void relayRoomMessage(String room, String text) {
+        relayLog.append(RELAY_ROOM, false, out -> {
+            out.writeUTF(room);
+            writeString(out, text);
+        });
+    }
+
+    public void relayDirectMessage(String from, String to, String text) {
+        relayLog.append(RELAY_DIRECT, false, out -> {
+            out.writeUTF(from);
+            out.writeUTF(to);
+            writeString(out, text);
+        });
+    }
+
+    // username now is (or is no longer) online on this node
+    public void relayPresence(String username, boolean joined) {
+        relayLog.append(RELAY_PRESENCE, true, out -> {
+            out.writeUTF(username);
+            out.writeBoolean(joined);
+        });
+    }
+
+    public boolean isOnlineOnPeers(String username) {
+        for (Set<String> users : remoteUsers.values()) {
+            if (users.contains(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<String> peerUsernames() {
+        Set<String> usernames = new TreeSet<>();
+        for (Set<String> users : remoteUsers.values()) {
+            usernames.addAll(users);
+        }
+        return usernames;
+    }
+
+    public void close() {
+        open = false;
+        timer.shutdownNow();
+        relayLog.wakeAll();
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    // ---- Outbound: our events to one peer ----
+
+    private void linkTo(String peer) {
+        InetSocketAddress address = parseAddress(peer);
+        int delay = RECONNECT_DELAY_MS;
+        boolean reported = false;
+
+        while (open) {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                out.write(frame(PEER_HELLO, body -> {
+                    body.writeUTF(nodeId);
+                    body.writeLong(epoch);
+                }));
+                out.flush();
+
+                socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+                WireProtocol.Packet ack = WireProtocol.readPacket(in);
+                if (ack == null || ack.type != PEER_ACK) {
+                    throw new IOException("Peer didn't acknowledge");
+                }
+                long acked = payload(ack).readLong();
+                socket.setSoTimeout(0);
+
+                ChatServer.log("Cluster link to " + peer + " up");
+                delay = RECONNECT_DELAY_MS;
+                reported = false;
+                stream(out, acked);
+
+            } catch (IOException e) {
+                if (open && !reported) {
+                    ChatServer.log(AsyncLogger.Level.WARN, "Cluster link to " + peer + " down: " + e.getMessage());
+                    reported = true;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                sockets.remove(socket);
+                closeQuietly(socket);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
+        }
+    }
+
+    // Sends the presence list, then relayed events from where the peer left off, for as long as the link lasts
+    private void stream(DataOutputStream out, long acked) throws IOException, InterruptedException {
+        // A new run of the peer starts from here; earlier events predate it
+        long cursor = acked < 0 ? relayLog.last() : acked;
+        long syncedAt = sync(out, cursor);
+
+        while (open) {
+            List<RelayLog.Entry> entries = relayLog.awaitAfter(cursor, KEEPALIVE_MS);
+            if (entries.isEmpty()) {
+                out.write(frame(PEER_PING, body -> { }));
+                out.flush();
+                continue;
+            }
+            if (entries.get(0).sequence > cursor + 1) {
+                // Fell out of the log: say what is missing, and make up for the presence part
+                long first = cursor + 1;
+                long last = entries.get(0).sequence - 1;
+                ChatServer.log(AsyncLogger.Level.WARN, "Cluster peer fell behind; " + (last - first + 1)
+                        + " events not relayed, resending the user list");
+                out.write(frame(PEER_GAP, body -> {
+                    body.writeLong(first);
+                    body.writeLong(last);
+                }));
+                syncedAt = sync(out, last);
+            }
+            for (RelayLog.Entry entry : entries) {
+                if (!entry.presence || entry.sequence > syncedAt) {
+                    out.write(entry.frame);
+                }
+                cursor = entry.sequence;
+            }
+            out.flush();
+        }
+    }
+
+    // Sends everyone online here, split into frames well under the frame limit, and tells the
+    // peer that events resume after resumeFrom. Returns the last event the list covers.
+    private long sync(DataOutputStream out, long resumeFrom) throws IOException {
+        // Presence events up to here are covered by the list; anything later is sent as well
+        long syncedAt = relayLog.last();
+        List<String> users = ChatServer.localUsernames();
+
+        List<String> chunk = new ArrayList<>();
+        int chunkBytes = 0;
+        for (String user : users) {
+            int size = 2 + user.length() * 3;
+            if (!chunk.isEmpty() && chunkBytes + size > WireProtocol.MAX_FRAME_LENGTH / 2) {
+                writeSync(out, resumeFrom, true, chunk);
+                chunk.clear();
+                chunkBytes = 0;
+            }
+            chunk.add(user);
+            chunkBytes += size;
+        }
+        writeSync(out, resumeFrom, false, chunk);
+        out.flush();
+        return syncedAt;
+    }
+
+    private void writeSync(DataOutputStream out, long resumeFrom, boolean more, List<String> users) throws IOException {
+        out.write(frame(PEER_SYNC, body -> {
+            body.writeLong(resumeFrom);
+            body.writeBoolean(more);
+            body.writeInt(users.size());
+            for (String user : users) {
+                body.writeUTF(user);
+            }
+        }));
+    }
+
+    // ---- Inbound: peers' events to us ----
+
+    private void acceptPeers() {
+        while (open) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                sockets.add(socket);
+                startThread("cluster-peer-" + socket.getRemoteSocketAddress(), () -> serve(socket));
+            } catch (IOException e) {
+                if (open) {
+                    ChatServer.log(AsyncLogger.Level.WARN, "Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        String peer = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            WireProtocol.Packet packet = WireProtocol.readPacket(in);
+            if (packet == null || packet.type != PEER_HELLO) {
+                throw new IOException("Expected a peer hello");
+            }
+            DataInputStream hello = payload(packet);
+            peer = hello.readUTF();
+            long acked = acknowledge(peer, hello.readLong());
+            // The peer pings an idle link, so silence this long means it is gone
+            socket.setSoTimeout(PEER_TIMEOUT_MS);
+
+            Socket previous = inboundLinks.put(peer, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            pendingDrops.remove(peer); // Back in time; its sync corrects the user list
+            socket.getOutputStream().write(frame(PEER_ACK, body -> body.writeLong(acked)));
+            socket.getOutputStream().flush();
+            ChatServer.log("Cluster peer " + peer + " connected from " + socket.getRemoteSocketAddress());
+
+            Set<String> syncing = new HashSet<>();
+            while (open && (packet = WireProtocol.readPacket(in)) != null) {
+                receive(peer, packet, syncing);
+            }
+            if (open) {
+                ChatServer.log("Cluster peer " + peer + " disconnected");
+            }
+        } catch (SocketTimeoutException e) {
+            if (open) {
+                ChatServer.log(AsyncLogger.Level.WARN, "Cluster peer " + (peer != null ? peer : socket.getRemoteSocketAddress())
+                        + " silent for " + PEER_TIMEOUT_MS + " ms; dropping the link");
+            }
+        } catch (Exception e) {
+            if (open) {
+                ChatServer.log(AsyncLogger.Level.WARN, "Cluster peer " + (peer != null ? peer : socket.getRemoteSocketAddress())
+                        + " disconnected: " + e.getMessage());
+            }
+        } finally {
+            sockets.remove(socket);
+            closeQuietly(socket);
+            // Only the current link speaks for the peer; a replaced one just goes away
+            if (peer != null && inboundLinks.remove(peer, socket)) {
+                dropUsersLater(peer);
+            }
+        }
+    }
+
+    // The peer's users leave unless it reconnects within the grace period
+    private void dropUsersLater(String peer) {
+        if (!open) {
+            return;
+        }
+        if (peerGraceMs == 0) {
+            replaceUsers(peer, Collections.<String>emptySet());
+            return;
+        }
+
+        // In the map before it is scheduled, so it finds itself there however soon it runs.
+        // One that was replaced or taken out by a reconnect does nothing when its time comes.
+        Runnable drop = new Runnable() {
+            @Override
+            public void run() {
+                if (pendingDrops.remove(peer, this) && !inboundLinks.containsKey(peer)) {
+                    ChatServer.log("Cluster peer " + peer + " didn't come back; its users have left");
+                    replaceUsers(peer, Collections.<String>emptySet());
+                }
+            }
+        };
+        pendingDrops.put(peer, drop);
+        timer.schedule(drop, peerGraceMs, TimeUnit.MILLISECONDS);
+    }
+
+    // syncing gathers a user list sent in several PEER_SYNC frames
+    private void receive(String peer, WireProtocol.Packet packet, Set<String> syncing) throws Exception {
+        DataInputStream body = payload(packet);
+        if (packet.type == PEER_SYNC) {
+            long resumeFrom = body.readLong();
+            synchronized (seen) {
+                seen.get(peer).lastSequence = resumeFrom;
+            }
+            boolean more = body.readBoolean();
+            int count = body.readInt();
+            for (int i = 0; i < count; i++) {
+                syncing.add(body.readUTF());
+            }
+            if (!more) {
+                replaceUsers(peer, syncing);
+                syncing.clear();
+            }
+            return;
+        }
+        if (packet.type == PEER_PING) {
+            return; // Reading it was the point
+        }
+        if (packet.type == PEER_GAP) {
+            long first = body.readLong();
+            ChatServer.onRelayGap(peer, body.readLong() - first + 1);
+            return;
+        }
+
+        if (!firstSighting(peer, body.readLong())) {
+            return; // Resent after a reconnect; already delivered
+        }
+        switch (packet.type) {
+            case RELAY_ROOM:
+                ChatServer.deliverRelayedRoomMessage(body.readUTF(), readString(body));
+                break;
+            case RELAY_DIRECT:
+                ChatServer.deliverRelayedDirectMessage(body.readUTF(), body.readUTF(), readString(body));
+                break;
+            case RELAY_PRESENCE:
+                String username = body.readUTF();
+                applyPresence(peer, username, body.readBoolean());
+                break;
+            default:
+                ChatServer.log("Ignoring cluster frame of unknown type " + packet.type + " from " + peer);
+        }
+    }
+
+    // The last sequence already received from this run of the peer, or -1 if it is new to us
+    private long acknowledge(String peer, long peerEpoch) {
+        synchronized (seen) {
+            Seen last = seen.get(peer);
+            if (last != null && last.epoch == peerEpoch) {
+                return last.lastSequence;
+            }
+            seen.put(peer, new Seen(peerEpoch));
+            return -1;
+        }
+    }
+
+    private boolean firstSighting(String peer, long sequence) {
+        synchronized (seen) {
+            Seen last = seen.get(peer);
+            if (sequence <= last.lastSequence) {
+                return false;
+            }
+            last.lastSequence = sequence;
+            return true;
+        }
+    }
+
+    private void applyPresence(String peer, String username, boolean joined) {
+        synchronized (remoteUsers) {
+            boolean before = isOnlineOnPeers(username);
+            if (joined) {
+                remoteUsers.computeIfAbsent(peer, node -> ConcurrentHashMap.newKeySet()).add(username);
+            } else {
+                Set<String> users = remoteUsers.get(peer);
+                if (users != null) {
+                    users.remove(username);
+                }
+            }
+            if (isOnlineOnPeers(username) != before) {
+                ChatServer.onPeerPresenceChanged(username, !before);
+            }
+        }
+    }
+
+    private void replaceUsers(String peer, Set<String> users) {
+        synchronized (remoteUsers) {
+            Set<String> previous = remoteUsers.getOrDefault(peer, Collections.<String>emptySet());
+            Set<String> changed = new HashSet<>(previous);
+            changed.addAll(users);
+            Map<String, Boolean> before = new HashMap<>();
+            for (String username : changed) {
+                if (previous.contains(username) != users.contains(username)) {
+                    before.put(username, isOnlineOnPeers(username));
+                }
+            }
+
+            if (users.isEmpty()) {
+                remoteUsers.remove(peer);
+            } else {
+                Set<String> copy = ConcurrentHashMap.newKeySet();
+                copy.addAll(users);
+                remoteUsers.put(peer, copy);
+            }
+
+            for (Map.Entry<String, Boolean> entry : before.entrySet()) {
+                if (isOnlineOnPeers(entry.getKey()) != entry.getValue()) {
+                    ChatServer.onPeerPresenceChanged(entry.getKey(), !entry.getValue());
+                }
+            }
+        }
+    }
+
+    // ---- Encoding ----
+
+    private byte[] frame(byte type, BodyWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bytes);
+        writer.write(body);
+        body.flush();
+        try {
+            return WireProtocol.encryptFrame(type, bytes.toByteArray(), key);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to encrypt cluster frame", e);
+        }
+    }
+
+    private DataInputStream payload(WireProtocol.Packet packet) throws IOException {
+        try {
+            return new DataInputStream(new ByteArrayInputStream(WireProtocol.decryptBytes(packet, key)));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // Most likely a node started with a different password
+            throw new IOException("Failed to decrypt cluster frame", e);
+        }
+    }
+
+    // Chat text can be longer than writeUTF allows
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static InetSocketAddress parseAddress(String peer) {
+        int colon = peer.lastIndexOf(':');
+        if (colon <= 0 || colon == peer.length() - 1) {
+            throw new IllegalArgumentException("Peers are host:port, got " + peer);
+        }
+        return InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private interface BodyWriter {
+        void write(DataOutputStream body) throws IOException;
+    }
+
+    private static final class Seen {
+        final long epoch;
+        long lastSequence;
+
+        Seen(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    // The most recent events relayed from this node, already encrypted, so each peer link
+    // can send (and after a reconnect resend) from its own position
+    private final class RelayLog {
+        private final Entry[] entries;
+        // guarded by this
+        private long last;
+
+        RelayLog(int capacity) {
+            this.entries = new Entry[capacity];
+        }
+
+        synchronized void append(byte type, boolean presence, BodyWriter writer) {
+            if (peers.isEmpty()) {
+                return; // Nobody to send to
+            }
+
+            long sequence = last + 1;
+            try {
+                byte[] frame = frame(type, body -> {
+                    body.writeLong(sequence);
+                    writer.write(body);
+                });
+                entries[(int) (sequence % entries.length)] = new Entry(sequence, presence, frame);
+                last = sequence;
+                notifyAll();
+            } catch (IOException e) {
+                ChatServer.log(AsyncLogger.Level.ERROR, "Failed to relay to cluster: " + e.getMessage());
+            }
+        }
+
+        synchronized long last() {
+            return last;
+        }
+
+        // Oldest sequence still held
+        synchronized long first() {
+            return Math.max(1, last - entries.length + 1);
+        }
+
+        // Entries after the given sequence, waiting up to timeoutMs for one if there are none
+        // yet (and returning none if it doesn't come). For a peer that has fallen more than a
+        // log behind, they start later than asked.
+        synchronized List<Entry> awaitAfter(long sequence, long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (open && last <= sequence) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return Collections.emptyList();
+                }
+                wait(remaining);
+            }
+
+            long from = Math.max(sequence + 1, first());
+            List<Entry> batch = new ArrayList<>((int) (last - from + 1));
+            for (long s = from; s <= last; s++) {
+                batch.add(entries[(int) (s % entries.length)]);
+            }
+            return batch;
+        }
+
+        synchronized void wakeAll() {
+            notifyAll();
+        }
+
+        final class Entry {
+            final long sequence;
+            final boolean presence;
+            final byte[] frame;
+
+            Entry(long sequence, boolean presence, byte[] frame) {
+                this.sequence = sequence;
+                this.presence = presence;
+                this.frame = frame;
+            }
+        }
+    }
+}
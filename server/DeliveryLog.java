@@ -0,0 +1,115 @@
+package server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// What a resumable session has been sent: the sequence numbers of its chat frames
+// in the order they were queued, and, once it disconnects, the last number in each
+// room (and for private messages) from before it stopped receiving them. Sequence
+// numbers are global, but rooms and private messages number theirs under different
+// locks, so a client can receive them out of numeric order. The client reports the
+// last one it received, and the log says what was queued after it.
+final class DeliveryLog {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int capacity;
+    // Ring of queued sequence numbers, grown up to capacity as needed
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    // Whether the ring has overwritten anything yet
+    private boolean wrapped;
+    private final Map<String, Long> roomFloors = new HashMap<>();
+    private long directFloor = Long.MAX_VALUE;
+
+    DeliveryLog(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    // For a resumed session whose client last received lastReceived (0 = nothing yet)
+    static DeliveryLog resumedAt(int capacity, long lastReceived) {
+        DeliveryLog log = new DeliveryLog(capacity);
+        if (lastReceived != 0) {
+            log.add(lastReceived);
+        }
+        return log;
+    }
+
+    synchronized void add(long sequence) {
+        if (count == sequences.length && count < capacity) {
+            long[] larger = new long[Math.min(capacity, count * 2)];
+            for (int i = 0; i < count; i++) {
+                larger[i] = sequences[(head + i) % count];
+            }
+            sequences = larger;
+            head = 0;
+        }
+
+        if (count < sequences.length) {
+            sequences[(head + count++) % sequences.length] = sequence;
+        } else {
+            sequences[head] = sequence;
+            head = (head + 1) % sequences.length;
+            wrapped = true;
+        }
+    }
+
+    // Called under the room's delivery lock as the session leaves it; the first call counts
+    synchronized void stoppedRoom(String room, long lastSequence) {
+        roomFloors.putIfAbsent(room, lastSequence);
+    }
+
+    // Called before the session is taken out of the username index; the first call counts
+    synchronized void stoppedDirect(long lastSequence) {
+        directFloor = Math.min(directFloor, lastSequence);
+    }
+
+    // Numbers after this in the room can't have reached the session; Long.MAX_VALUE if unknown
+    synchronized long roomFloor(String room) {
+        Long floor = roomFloors.get(room);
+        return floor != null ? floor : Long.MAX_VALUE;
+    }
+
+    synchronized long directFloor() {
+        return directFloor;
+    }
+
+    // Queued after lastReceived (0 = nothing received), in queue order; null if lastReceived
+    // is no longer in the log
+    synchronized long[] queuedAfter(long lastReceived) {
+        int from;
+        if (lastReceived == 0) {
+            if (wrapped) {
+                return null;
+            }
+            from = 0;
+        } else {
+            from = -1;
+            for (int i = count - 1; i >= 0; i--) {
+                if (sequences[(head + i) % sequences.length] == lastReceived) {
+                    from = i + 1;
+                    break;
+                }
+            }
+            if (from < 0) {
+                return null;
+            }
+        }
+
+        long[] after = new long[count - from];
+        for (int i = from; i < count; i++) {
+            after[i - from] = sequences[(head + i) % sequences.length];
+        }
+        return after;
+    }
+
+    synchronized Set<Long> queued() {
+        Set<Long> queued = new HashSet<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            queued.add(sequences[(head + i) % sequences.length]);
+        }
+        return queued;
+    }
+}
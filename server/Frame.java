@@ -0,0 +1,139 @@
+package server;
+
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// An encrypted, wire-ready message. All clients share one key, so a broadcast
+// is encrypted once into a Frame and the same bytes are written to everyone.
+// The binary frame is built up front; the legacy Base64 line is derived from
+// it the first time a line-protocol client needs it.
+public final class Frame {
+    private static final AtomicIntegerFieldUpdater<Frame> PENDING_WRITES =
+            AtomicIntegerFieldUpdater.newUpdater(Frame.class, "pendingWrites");
+
+    private final byte[] binary;
+    private final boolean raw;
+    // Where the IV starts; the line format carries no header or sequence number
+    private final int bodyOffset;
+    private long sequence;
+    private volatile byte[] line;
+    // End-to-end latency of a chat message: when it was read, and the writes still to happen
+    // plus one held by the publisher until every recipient has it queued
+    private long receivedAt;
+    private volatile int pendingWrites;
+
+    private Frame(byte[] binary, boolean raw) {
+        this(binary, raw, WireProtocol.HEADER_LENGTH);
+    }
+
+    private Frame(byte[] binary, boolean raw, int bodyOffset) {
+        this.binary = binary;
+        this.raw = raw;
+        this.bodyOffset = bodyOffset;
+    }
+
+    public static Frame encrypt(String message, SecretKeySpec key) throws Exception {
+        return encrypt(WireProtocol.TYPE_MESSAGE, message, key);
+    }
+
+    public static Frame encrypt(byte type, String message, SecretKeySpec key) throws Exception {
+        long start = System.nanoTime();
+        Frame frame = new Frame(WireProtocol.encryptFrame(type, message, key), false);
+        Metrics.ENCRYPT.recordSince(start);
+        return frame;
+    }
+
+    public static Frame encrypt(byte type, byte[] plain, SecretKeySpec key) throws Exception {
+        long start = System.nanoTime();
+        Frame frame = new Frame(WireProtocol.encryptFrame(type, plain, key), false);
+        Metrics.ENCRYPT.recordSince(start);
+        return frame;
+    }
+
+    // Chat message that gets its sequence number (setSequence) before it is first sent
+    public static Frame encryptSequenced(String message, SecretKeySpec key) throws Exception {
+        long start = System.nanoTime();
+        Frame frame = new Frame(WireProtocol.encryptSequencedFrame(message, key), false,
+                WireProtocol.HEADER_LENGTH + WireProtocol.SEQUENCE_LENGTH);
+        Metrics.ENCRYPT.recordSince(start);
+        return frame;
+    }
+
+    // A sequenced frame as produced by encryptSequenced, read back (e.g. from the journal)
+    public static Frame sequenced(byte[] binary) {
+        Frame frame = new Frame(binary, false, WireProtocol.HEADER_LENGTH + WireProtocol.SEQUENCE_LENGTH);
+        frame.sequence = ByteBuffer.wrap(binary).getLong(WireProtocol.HEADER_LENGTH);
+        return frame;
+    }
+
+    // Unencrypted bytes written as-is whatever the client's format (e.g. the protocol handshake)
+    public static Frame raw(byte[] bytes) {
+        return new Frame(bytes, true);
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+        WireProtocol.setSequence(binary, sequence);
+    }
+
+    // 0 for frames without one
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Starts timing a chat message read at receivedAt (System.nanoTime()); the publisher
+    // calls endDelivery once it has queued the frame for everyone
+    void beginDelivery(long receivedAt) {
+        this.receivedAt = receivedAt;
+        PENDING_WRITES.set(this, 1);
+    }
+
+    void endDelivery() {
+        written();
+    }
+
+    // Queued for one more recipient; no-op unless timed
+    void addRecipient() {
+        if (receivedAt != 0) {
+            PENDING_WRITES.incrementAndGet(this);
+        }
+    }
+
+    // Written to (or dropped for) one recipient; the last one records the latency
+    void written() {
+        if (receivedAt != 0 && PENDING_WRITES.decrementAndGet(this) == 0) {
+            Metrics.END_TO_END.recordSince(receivedAt);
+        }
+    }
+
+    // Each writer gets its own read-only view so positions don't interfere
+    public ByteBuffer toBuffer(WireProtocol.Format format) {
+        return ByteBuffer.wrap(bytes(format)).asReadOnlyBuffer();
+    }
+
+    byte[] bytes(WireProtocol.Format format) {
+        if (raw || format == WireProtocol.Format.BINARY) {
+            return binary;
+        }
+
+        byte[] encoded = line;
+        if (encoded == null) {
+            // Racing writers may both encode; the results are identical
+            byte[] body = Arrays.copyOfRange(binary, bodyOffset, binary.length);
+            encoded = new byte[4 * ((body.length + 2) / 3) + 1];
+            int length = Base64.getEncoder().encode(body, encoded);
+            encoded[length] = '\n';
+            line = encoded;
+        }
+        return encoded;
+    }
+
+    public int length(WireProtocol.Format format) {
+        return bytes(format).length;
+    }
+}
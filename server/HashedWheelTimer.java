@@ -0,0 +1,157 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// One thread ticking round a wheel of buckets, for timeouts that are set often and
+// rarely need to be precise (idle checks on every connection). Scheduling is O(1):
+// the timeout goes on a queue, and the wheel thread drops it into the bucket its
+// deadline falls in, with a count of full turns still to wait. Each tick expires
+// one bucket, so a timeout fires up to one tick late.
+public class HashedWheelTimer {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    // Scheduled by any thread, moved into the wheel by the wheel thread
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean open = true;
+
+    // wheelSize is rounded up to a power of two
+    public HashedWheelTimer(String name, long tickMs, int wheelSize) {
+        if (tickMs < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Tick and wheel size must be at least 1");
+        }
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Runs task on the wheel thread after about delayMs; tasks must be quick
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMs));
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    public void close() {
+        open = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (open) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    break; // Closed
+                }
+            }
+
+            transferIncoming(tick);
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    // Places newly scheduled timeouts; anything already due goes in the current bucket
+    private void transferIncoming(long tick) {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            long dueTick = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            wheel[(int) (dueTick & mask)].add(timeout);
+        }
+    }
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // nanos since the timer started
+        private volatile boolean cancelled;
+        // Wheel thread only
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Cancelled timeouts are dropped when the wheel next passes their bucket
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    // Doubly linked so expired and cancelled timeouts unlink in O(1); wheel thread only
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void expire(long tickDeadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline) {
+                    remove(timeout);
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ChatServer.log(AsyncLogger.Level.ERROR, "Timer task failed: " + e.getMessage());
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// In-memory transport for running the server inside a test. connect() returns the client's
+// end of a new connection and hands the server's end to accept(); the two are joined by a
+// pair of bounded byte pipes, which behave like a socket's buffers: reads block until data
+// arrives, writes block once the other side has fallen a buffer behind, and closing either
+// end gives the other end-of-stream on read and an IOException on write. No ports, no
+// network; buffers start small and grow only as far as a connection needs, so thousands of
+// idle connections cost little more than the server's threads for them.
+public class LoopbackTransport implements Transport {
+    private static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+    private static final int INITIAL_BUFFER_BYTES = 256;
+    // Wakes accept() for good once the transport is closed
+    private static final Endpoint CLOSED = new Endpoint(null, null, "closed");
+
+    private final int bufferBytes;
+    private final BlockingQueue<Endpoint> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile boolean open = true;
+
+    public LoopbackTransport() {
+        this(DEFAULT_BUFFER_BYTES);
+    }
+
+    // bufferBytes is how much each direction holds before writes block
+    public LoopbackTransport(int bufferBytes) {
+        if (bufferBytes < 1) {
+            throw new IllegalArgumentException("Buffer must be at least 1 byte");
+        }
+        this.bufferBytes = bufferBytes;
+    }
+
+    // The client's end of a new connection; speak the wire protocol over its streams
+    public Connection connect() throws IOException {
+        if (!open) {
+            throw new IOException("Transport closed");
+        }
+
+        String name = "loopback-" + nextId.incrementAndGet();
+        Pipe toServer = new Pipe(bufferBytes);
+        Pipe toClient = new Pipe(bufferBytes);
+        pending.add(new Endpoint(toServer, toClient, name));
+        return new Endpoint(toClient, toServer, name);
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        try {
+            Endpoint connection = pending.take();
+            if (connection == CLOSED) {
+                pending.add(CLOSED); // For any other thread in accept()
+                throw new IOException("Transport closed");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accepting");
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public String describe() {
+        return "loopback";
+    }
+
+    // Connections not yet accepted are dropped; their clients read end-of-stream
+    @Override
+    public void close() {
+        open = false;
+        Endpoint connection;
+        while ((connection = pending.poll()) != null) {
+            if (connection != CLOSED) {
+                connection.close();
+            }
+        }
+        pending.add(CLOSED);
+    }
+
+    // One end of a connection: reads from one pipe, writes to the other
+    private static final class Endpoint implements Connection {
+        private final Pipe in;
+        private final Pipe out;
+        private final String name;
+        private volatile boolean open = true;
+
+        Endpoint(Pipe in, Pipe out, String name) {
+            this.in = in;
+            this.out = out;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in.input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out.output;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            in.closeReader();
+            out.closeWriter();
+        }
+    }
+
+    // Ring buffer with one reading and one writing end, grown on demand up to its capacity.
+    // Locks rather than synchronized, so blocked virtual threads don't pin their carriers.
+    private static final class Pipe {
+        private final int capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = lock.newCondition();
+        private final Condition writable = lock.newCondition();
+        // guarded by lock
+        private byte[] buffer;
+        private int head;
+        private int count;
+        private boolean readerClosed;
+        private boolean writerClosed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int off, int len) throws IOException {
+                return Pipe.this.read(bytes, off, len);
+            }
+
+            @Override
+            public int available() {
+                lock.lock();
+                try {
+                    return count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int off, int len) throws IOException {
+                Pipe.this.write(bytes, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+
+        Pipe(int capacity) {
+            this.capacity = capacity;
+            this.buffer = new byte[Math.min(capacity, INITIAL_BUFFER_BYTES)];
+        }
+
+        // Blocks until there is data; -1 once the writer has closed and everything is read
+        int read(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            lock.lock();
+            try {
+                while (count == 0 && !writerClosed && !readerClosed) {
+                    readable.await();
+                }
+                if (readerClosed) {
+                    throw new IOException("Connection closed");
+                }
+                if (count == 0) {
+                    return -1;
+                }
+
+                int n = Math.min(len, count);
+                int first = Math.min(n, buffer.length - head);
+                System.arraycopy(buffer, head, bytes, off, first);
+                System.arraycopy(buffer, 0, bytes, off + first, n - first);
+                head = (head + n) % buffer.length;
+                count -= n;
+                writable.signal();
+                return n;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Blocks while the buffer is full; fails once either end has closed
+        void write(byte[] bytes, int off, int len) throws IOException {
+            lock.lock();
+            try {
+                while (len > 0) {
+                    if (buffer.length - count < len && buffer.length < capacity) {
+                        grow(count + len);
+                    }
+                    while (count == buffer.length && !readerClosed && !writerClosed) {
+                        writable.await();
+                    }
+                    if (readerClosed || writerClosed) {
+                        throw new IOException("Connection closed");
+                    }
+
+                    int n = Math.min(len, buffer.length - count);
+                    int tail = (head + count) % buffer.length;
+                    int first = Math.min(n, buffer.length - tail);
+                    System.arraycopy(bytes, off, buffer, tail, first);
+                    System.arraycopy(bytes, off + first, buffer, 0, n - first);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    readable.signal();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Caller holds lock. Unwraps the ring into a bigger array starting at 0.
+        private void grow(int needed) {
+            byte[] larger = new byte[(int) Math.min(capacity, Math.max(2L * buffer.length, needed))];
+            int first = Math.min(count, buffer.length - head);
+            System.arraycopy(buffer, head, larger, 0, first);
+            System.arraycopy(buffer, 0, larger, first, count - first);
+            buffer = larger;
+            head = 0;
+        }
+
+        void closeReader() {
+            lock.lock();
+            try {
+                readerClosed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void closeWriter() {
+            lock.lock();
+            try {
+                writerClosed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
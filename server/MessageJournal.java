@@ -0,0 +1,578 @@
+package server;
+
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Append-only on-disk history of chat messages, split into segment files named
+// after the first sequence number they hold. A segment starts with
+//
+//   [int magic][long key fingerprint]
+//
+// followed by records of
+//
+//   [long sequence][int length][sequenced frame]
+//
+// where the frame is exactly what clients were sent: encrypted, with its sequence
+// number in the header. Nothing readable reaches the disk, and replaying a record
+// costs no encryption. append() only enqueues; a background thread writes whatever
+// has queued up and forces it to disk once per batch (group commit).
+//
+// The last keepRecent frames are also held in memory, and that is what joining
+// clients are replayed from; replay() streams longer catch-ups from the segments
+// one record at a time. Segments written under another key would only decrypt to
+// garbage, so they are never replayed. Once the segments take up more than the
+// retention limit, the oldest are deleted. A lock file keeps a second server from
+// opening the same directory.
+public class MessageJournal {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "journal.lock";
+    private static final int SEGMENT_MAGIC = 0x434A4E4C; // "CJNL"
+    private static final int SEGMENT_HEADER = 12;
+    private static final int RECORD_HEADER = 12;
+    private static final long REPLAY_WAIT_MS = 5000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MIN_FRAME_LENGTH = WireProtocol.HEADER_LENGTH + WireProtocol.SEQUENCE_LENGTH;
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    // Queued by close(); the writer stops once it has written everything ahead of it
+    private static final Record CLOSE = new Record(0, new byte[0]);
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retainBytes;
+    private final long keyFingerprint;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final BlockingQueue<Record> pending = new LinkedBlockingQueue<>();
+    // First sequence number in each segment -> segment file
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    // Segments from this number on are readable with the key; Long.MAX_VALUE until there is one
+    private volatile long replayableFrom = Long.MAX_VALUE;
+    private final AtomicLong appended = new AtomicLong();
+    // Records the writer is done with, written or not; guarded by this
+    private long processed;
+    private final Thread writer;
+    // Writer thread only (after open)
+    private FileChannel current;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // Until a write fails, the segment left by the previous run is appended to while it has room
+    private boolean appendToLast = true;
+    private long lastSequence;
+    // Ring of the most recent frames, oldest at recentHead once full; guarded by itself
+    private final Frame[] recent;
+    private int recentHead;
+    private int recentCount;
+
+    // keepRecent bounds how many messages recent() can go back; retainBytes = 0 keeps every segment.
+    // Fails if another server has the directory open.
+    public MessageJournal(Path directory, long segmentBytes, long retainBytes, int keepRecent, SecretKeySpec key)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.keyFingerprint = fingerprint(key);
+        this.recent = new Frame[Math.max(1, keepRecent)];
+        createDirectory(directory);
+
+        lockChannel = openOwnerOnly(directory.resolve(LOCK_FILE), EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null; // Held by this JVM
+        }
+        lock = acquired;
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Journal directory " + directory + " is in use by another server");
+        }
+
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+
+        writer = new Thread(this::writeLoop, "message-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Highest sequence number found on disk when the journal was opened
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // The frame must already have its sequence number. Callers that need the journal in
+    // delivery order call this under that order's lock.
+    public void append(Frame frame) {
+        rememberFrame(frame);
+        appended.incrementAndGet();
+        pending.add(new Record(frame.getSequence(), frame.bytes(WireProtocol.Format.BINARY)));
+    }
+
+    // Streams every frame appended after the given sequence number to the sink, oldest first,
+    // reading the segments a record at a time. Returns false without streaming anything if
+    // the readable segments don't go back that far. Waits for queued appends to reach the
+    // disk first, so callers hold off appending (the lobby's delivery lock) while it runs.
+    public boolean replay(long afterSequence, FrameSink sink) throws IOException {
+        if (!awaitWritten()) {
+            return false;
+        }
+        Long first = segments.ceilingKey(replayableFrom);
+        if (first == null || first > afterSequence + 1) {
+            return false;
+        }
+
+        // Start in the segment holding the next number, or the first readable one
+        Long start = segments.floorKey(afterSequence + 1);
+        for (Path segment : segments.tailMap(Math.max(first, start != null ? start : first)).values()) {
+            readSegment(segment, (sequence, frame) -> {
+                if (sequence > afterSequence) {
+                    sink.accept(Frame.sequenced(frame));
+                }
+                return true;
+            });
+        }
+        return true;
+    }
+
+    // The last count frames appended (at most keepRecent), oldest first. Served from memory, so
+    // it includes frames still waiting to be written.
+    public List<Frame> recent(int count) {
+        synchronized (recent) {
+            int available = Math.min(count, recentCount);
+            List<Frame> frames = new ArrayList<>(available);
+            for (int i = recentCount - available; i < recentCount; i++) {
+                frames.add(recent[(recentHead + i) % recent.length]);
+            }
+            return frames;
+        }
+    }
+
+    private void rememberFrame(Frame frame) {
+        synchronized (recent) {
+            if (recentCount < recent.length) {
+                recent[(recentHead + recentCount++) % recent.length] = frame;
+            } else {
+                recent[recentHead] = frame;
+                recentHead = (recentHead + 1) % recent.length;
+            }
+        }
+    }
+
+    // Until the writer has been through everything appended so far; false if it takes too long
+    private boolean awaitWritten() {
+        long target = appended.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLAY_WAIT_MS);
+        synchronized (this) {
+            while (processed < target) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Interrupting the writer could close the channel mid-write, so it is asked to stop instead
+    public void close() {
+        pending.add(CLOSE);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lockChannel.close(); // Releases the lock
+        } catch (IOException e) {
+            ChatServer.log(AsyncLogger.Level.ERROR, "Failed to release journal lock: " + e.getMessage());
+        }
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String number = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                segments.put(Long.parseLong(number), file);
+            }
+        }
+
+        // A crash while creating a segment can leave it without a whole header, and so empty
+        Map.Entry<Long, Path> created = segments.lastEntry();
+        if (created != null && readFingerprint(created.getValue()) == null) {
+            Files.delete(created.getValue());
+            segments.remove(created.getKey());
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        // One pass over the newest segment finds its last complete record, cuts off anything a
+        // crash left half-written, and collects the newest frames for the in-memory history
+        Path last = segments.lastEntry().getValue();
+        boolean lastReadable = Long.valueOf(keyFingerprint).equals(readFingerprint(last));
+        Deque<Frame> newest = new ArrayDeque<>();
+        long[] lastFound = {segments.lastKey() - 1};
+        long validBytes = readSegment(last, (sequence, frame) -> {
+            lastFound[0] = sequence;
+            if (lastReadable) {
+                keepNewest(newest, Frame.sequenced(frame), recent.length);
+            }
+            return true;
+        });
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            if (channel.size() > validBytes) {
+                ChatServer.log(AsyncLogger.Level.WARN, "Truncating partial record at end of " + last.getFileName());
+                channel.truncate(validBytes);
+            }
+        }
+        lastSequence = lastFound[0];
+
+        // Work back through the older segments written under the same key, for as much
+        // history as the ring holds. Only the newest frames are kept while scanning.
+        int unreadable = 0;
+        if (lastReadable) {
+            replayableFrom = segments.lastKey();
+            for (Map.Entry<Long, Path> segment : segments.headMap(segments.lastKey()).descendingMap().entrySet()) {
+                if (!Long.valueOf(keyFingerprint).equals(readFingerprint(segment.getValue()))) {
+                    break;
+                }
+                replayableFrom = segment.getKey();
+                int room = recent.length - newest.size();
+                if (room > 0) {
+                    Deque<Frame> older = new ArrayDeque<>();
+                    readSegment(segment.getValue(), (sequence, frame) -> {
+                        keepNewest(older, Frame.sequenced(frame), room);
+                        return true;
+                    });
+                    while (!older.isEmpty()) {
+                        newest.addFirst(older.pollLast());
+                    }
+                }
+            }
+            unreadable = segments.headMap(replayableFrom).size();
+        } else {
+            appendToLast = false;
+            unreadable = segments.size();
+        }
+        if (unreadable > 0) {
+            ChatServer.log(AsyncLogger.Level.WARN, unreadable + " journal segments in " + directory
+                    + " were written with a different key; their messages won't be replayed");
+        }
+
+        for (Frame frame : newest) {
+            rememberFrame(frame);
+        }
+    }
+
+    private static void keepNewest(Deque<Frame> frames, Frame frame, int limit) {
+        if (frames.size() == limit) {
+            frames.pollFirst();
+        }
+        frames.addLast(frame);
+    }
+
+    // The segment's key fingerprint; null if the header isn't all there
+    private static Long readFingerprint(Path segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Until the header is full or the file ends
+            }
+        }
+        if (header.hasRemaining()) {
+            return null;
+        }
+        if (header.getInt(0) != SEGMENT_MAGIC) {
+            throw new IOException(segment + " is not a journal segment");
+        }
+        return header.getLong(4);
+    }
+
+    // Identifies the key without giving it away: segments are only replayed under the same one
+    private static long fingerprint(SecretKeySpec key) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update("message-journal".getBytes(StandardCharsets.UTF_8));
+            sha.update(key.getEncoded());
+            return ByteBuffer.wrap(sha.digest()).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Calls visitor for each complete record; returns the offset just past the last one
+    private static long readSegment(Path segment, RecordVisitor visitor) throws IOException {
+        long offset = SEGMENT_HEADER;
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            channel.position(SEGMENT_HEADER);
+            while (true) {
+                int read = channel.read(buffer);
+                buffer.flip();
+
+                while (buffer.remaining() >= RECORD_HEADER) {
+                    int recordStart = buffer.position();
+                    long sequence = buffer.getLong(recordStart);
+                    int length = buffer.getInt(recordStart + 8);
+                    if (length < MIN_FRAME_LENGTH || length > 4 + WireProtocol.MAX_FRAME_LENGTH) {
+                        return offset; // Corrupt tail
+                    }
+
+                    if (buffer.remaining() < RECORD_HEADER + length) {
+                        if (RECORD_HEADER + length > buffer.capacity()) {
+                            // Record bigger than the buffer: grow just enough to hold it
+                            ByteBuffer larger = ByteBuffer.allocate(RECORD_HEADER + length);
+                            larger.put(buffer).flip();
+                            buffer = larger;
+                        }
+                        break;
+                    }
+
+                    byte[] frame = new byte[length];
+                    buffer.position(recordStart + RECORD_HEADER);
+                    buffer.get(frame);
+                    if (!isSequencedFrame(frame, sequence)) {
+                        return offset;
+                    }
+                    offset += RECORD_HEADER + length;
+                    if (!visitor.visit(sequence, frame)) {
+                        return offset;
+                    }
+                }
+
+                buffer.compact();
+                if (read < 0) {
+                    return offset; // Anything left over is a partial record
+                }
+            }
+        }
+    }
+
+    // A whole TYPE_SEQUENCED frame carrying the record's sequence number
+    private static boolean isSequencedFrame(byte[] frame, long sequence) {
+        ByteBuffer bytes = ByteBuffer.wrap(frame);
+        return bytes.getInt(0) == frame.length - 4
+                && bytes.get(4) == WireProtocol.TYPE_SEQUENCED
+                && bytes.getLong(WireProtocol.HEADER_LENGTH) == sequence;
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+
+        boolean closing = false;
+
+        while (!closing) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch);
+            closing = batch.remove(CLOSE);
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            try {
+                write(batch);
+            } catch (IOException | RuntimeException e) {
+                // The batch is lost from disk (it is still in memory for recent()). Start the next
+                // batch in a fresh segment rather than after a possibly half-written record, and
+                // don't replay from disk across the gap.
+                ChatServer.log(AsyncLogger.Level.ERROR, "Failed to write " + batch.size() + " messages to the journal: " + e);
+                writeBuffer.clear();
+                closeCurrent();
+                appendToLast = false;
+                replayableFrom = Long.MAX_VALUE;
+            }
+            synchronized (this) {
+                processed += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+
+        closeCurrent();
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        for (Record record : batch) {
+            if (current == null || current.size() + writeBuffer.position() >= segmentBytes) {
+                if (current != null) {
+                    drain(); // Finish the old segment before switching
+                }
+                roll(record.sequence);
+            }
+            if (writeBuffer.remaining() < RECORD_HEADER + record.frame.length) {
+                drain();
+                if (writeBuffer.capacity() < RECORD_HEADER + record.frame.length) {
+                    writeBuffer = ByteBuffer.allocateDirect(RECORD_HEADER + record.frame.length);
+                }
+            }
+            writeBuffer.putLong(record.sequence).putInt(record.frame.length).put(record.frame);
+        }
+        drain();
+        // Group commit: one fsync for the whole batch
+        current.force(false);
+    }
+
+    private void drain() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            current.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void roll(long firstSequence) throws IOException {
+        if (current != null) {
+            FileChannel finished = current;
+            current = null; // Stays null if the next segment can't be opened
+            finished.force(false);
+            finished.close();
+        } else if (appendToLast && !segments.isEmpty()) {
+            appendToLast = false;
+            // Keep appending to the segment recovered at startup while it has room
+            Path last = segments.lastEntry().getValue();
+            if (Files.size(last) < segmentBytes) {
+                current = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                return;
+            }
+        }
+        appendToLast = false;
+
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        current = openOwnerOnly(segment, EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        writeBuffer.putInt(SEGMENT_MAGIC).putLong(keyFingerprint);
+        segments.put(firstSequence, segment);
+        if (replayableFrom == Long.MAX_VALUE) {
+            replayableFrom = firstSequence;
+        }
+        deleteOldSegments();
+    }
+
+    // Oldest first, until the rest fit in retainBytes; the newest segment always stays
+    private void deleteOldSegments() {
+        if (retainBytes <= 0) {
+            return;
+        }
+
+        long total = 0;
+        for (Path segment : segments.values()) {
+            total += sizeOf(segment);
+        }
+        while (total > retainBytes && segments.size() > 1) {
+            Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+            long size = sizeOf(oldest.getValue());
+            try {
+                Files.deleteIfExists(oldest.getValue());
+                total -= size;
+            } catch (IOException e) {
+                ChatServer.log(AsyncLogger.Level.WARN, "Failed to delete old journal segment " + oldest.getValue().getFileName()
+                        + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static long sizeOf(Path segment) {
+        try {
+            return Files.size(segment);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void closeCurrent() {
+        FileChannel channel = current;
+        current = null;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ChatServer.log(AsyncLogger.Level.ERROR, "Failed to close message journal: " + e.getMessage());
+        }
+    }
+
+    // Owner-only where the file system has POSIX permissions; the frames are encrypted anyway
+    private static FileChannel openOwnerOnly(Path file, Set<StandardOpenOption> options) throws IOException {
+        try {
+            return FileChannel.open(file, options, PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+        } catch (UnsupportedOperationException e) {
+            return FileChannel.open(file, options);
+        }
+    }
+
+    private static void createDirectory(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        FileAttribute<Set<PosixFilePermission>> ownerOnly = PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY);
+        try {
+            Files.createDirectories(directory, ownerOnly);
+        } catch (UnsupportedOperationException e) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    public interface FrameSink {
+        void accept(Frame frame) throws IOException;
+    }
+
+    private interface RecordVisitor {
+        boolean visit(long sequence, byte[] frame) throws IOException;
+    }
+
+    private static final class Record {
+        final long sequence;
+        final byte[] frame;
+
+        Record(long sequence, byte[] frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+}
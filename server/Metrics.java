@@ -0,0 +1,285 @@
+package server;
+
+import util.LatencyHistogram;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server-wide counters, latency histograms and gauges. Recording never locks:
+// counters are LongAdders and histograms bump one slot of an AtomicLongArray, so
+// the hot paths pay a few nanoseconds. Everything is readable over JMX (as
+// server:type=Metrics) and, every --metrics-interval-s, dumped to the log as
+// plain text with the change since the previous dump.
+public final class Metrics {
+    public static final Counter MESSAGES_IN = counter("messagesIn");
+    public static final Counter BYTES_IN = counter("bytesIn");
+    public static final Counter MESSAGES_OUT = counter("messagesOut");
+    public static final Counter BYTES_OUT = counter("bytesOut");
+    public static final Counter DECRYPT_FAILURES = counter("decryptFailures");
+
+    public static final Histogram ENCRYPT = histogram("encryptNanos");
+    public static final Histogram DECRYPT = histogram("decryptNanos");
+    // Encrypting a chat message and queuing it for every recipient in its room
+    public static final Histogram FANOUT = histogram("fanoutNanos");
+    // From reading a chat message to the last recipient's socket write of it
+    public static final Histogram END_TO_END = histogram("endToEndNanos");
+
+    private static final List<Counter> counters = new CopyOnWriteArrayList<>();
+    private static final List<Histogram> histograms = new CopyOnWriteArrayList<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService dumper;
+
+    static {
+        counters.add(MESSAGES_IN);
+        counters.add(BYTES_IN);
+        counters.add(MESSAGES_OUT);
+        counters.add(BYTES_OUT);
+        counters.add(DECRYPT_FAILURES);
+        histograms.add(ENCRYPT);
+        histograms.add(DECRYPT);
+        histograms.add(FANOUT);
+        histograms.add(END_TO_END);
+    }
+
+    private Metrics() {
+    }
+
+    private static Counter counter(String name) {
+        return new Counter(name);
+    }
+
+    private static Histogram histogram(String name) {
+        return new Histogram(name);
+    }
+
+    // Gauges are read only when someone looks (JMX or a dump), so they may do some work
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // Once per JVM; a server started again in the same process keeps the first registration
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("server:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (Exception e) {
+            ChatServer.log(AsyncLogger.Level.WARN, "Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public static synchronized void startDump(int intervalSeconds) {
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> ChatServer.log(dump(intervalSeconds)), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+        }
+    }
+
+    // Plain-text report; counters and histograms cover the time since the previous call
+    static String dump(int intervalSeconds) {
+        StringBuilder text = new StringBuilder("Metrics (last ").append(intervalSeconds).append("s)");
+        for (Counter counter : counters) {
+            long total = counter.get();
+            text.append(String.format("%n  %-16s %,d (+%,d)", counter.name, total, total - counter.lastDumped));
+            counter.lastDumped = total;
+        }
+        for (Histogram histogram : histograms) {
+            LatencyHistogram.Snapshot interval = histogram.sinceLastDump();
+            text.append(String.format("%n  %-16s count=%,d p50=%s p99=%s p999=%s max=%s", histogram.name, interval.getCount(),
+                    micros(interval.percentile(0.50)), micros(interval.percentile(0.99)),
+                    micros(interval.percentile(0.999)), micros(interval.getMax())));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            text.append(String.format("%n  %-16s %,d", gauge.getKey(), gauge.getValue().getAsLong()));
+        }
+        return text.toString();
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus", nanos / 1000.0);
+    }
+
+    public static final class Counter {
+        final String name;
+        private final LongAdder value = new LongAdder();
+        private long lastDumped; // dump thread only
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Log-linear buckets: each power of two is split into 8, so any recorded value is
+    // reported to within 12.5%, from 1 ns up to Long.MAX_VALUE in 488 slots
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+
+        final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram(SUB_BUCKET_BITS);
+        private LatencyHistogram.Snapshot lastDumped = histogram.snapshot(); // dump thread only
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        public void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        // Convenience for timing a section: record(System.nanoTime() - start)
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public LatencyHistogram.Snapshot snapshot() {
+            return histogram.snapshot();
+        }
+
+        LatencyHistogram.Snapshot sinceLastDump() {
+            LatencyHistogram.Snapshot now = histogram.snapshot();
+            LatencyHistogram.Snapshot interval = now.since(lastDumped);
+            lastDumped = now;
+            return interval;
+        }
+    }
+
+    // Exposes every metric as a read-only attribute: counters and gauges by name,
+    // histograms as name.count, name.mean, name.p50, name.p99, name.p999 and name.max
+    // (all time, in nanoseconds)
+    private static final class MBean implements DynamicMBean {
+        private static final String[] HISTOGRAM_FIELDS = {"count", "mean", "p50", "p99", "p999", "max"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Counter counter : counters) {
+                if (counter.name.equals(attribute)) {
+                    return counter.get();
+                }
+            }
+            LongSupplier gauge = gauges.get(attribute);
+            if (gauge != null) {
+                return gauge.getAsLong();
+            }
+
+            int dot = attribute.lastIndexOf('.');
+            if (dot > 0) {
+                for (Histogram histogram : histograms) {
+                    if (histogram.name.equals(attribute.substring(0, dot))) {
+                        return histogramField(histogram.snapshot(), attribute.substring(dot + 1), attribute);
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        private static long histogramField(LatencyHistogram.Snapshot snapshot, String field, String attribute)
+                throws AttributeNotFoundException {
+            switch (field) {
+                case "count":
+                    return snapshot.getCount();
+                case "mean":
+                    return snapshot.mean();
+                case "p50":
+                    return snapshot.percentile(0.50);
+                case "p99":
+                    return snapshot.percentile(0.99);
+                case "p999":
+                    return snapshot.percentile(0.999);
+                case "max":
+                    return snapshot.getMax();
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the interface allows
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "No operations");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Counter counter : counters) {
+                attributes.add(attribute(counter.name, "Counter"));
+            }
+            for (Histogram histogram : histograms) {
+                for (String field : HISTOGRAM_FIELDS) {
+                    attributes.add(attribute(histogram.name + "." + field, "Histogram, all time"));
+                }
+            }
+            for (String gauge : gauges.keySet()) {
+                attributes.add(attribute(gauge, "Gauge"));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private static MBeanAttributeInfo attribute(String name, String description) {
+            return new MBeanAttributeInfo(name, "long", description, true, false, false);
+        }
+    }
+}
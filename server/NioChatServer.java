@@ -0,0 +1,243 @@
+package server;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Non-blocking server mode: one acceptor plus a small fixed set of selector
+// event loops. Every connection is a NioClientHandler pinned to one loop, so
+// idle users cost a buffer and a selection key instead of a thread.
+public class NioChatServer {
+
+    private final int port;
+    private final SecretKeySpec key;
+    private final ClientRegistry clients;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioChatServer(int port, int eventLoops, SecretKeySpec key, ClientRegistry clients) {
+        this.port = port;
+        this.key = key;
+        this.clients = clients;
+        this.loops = new EventLoop[eventLoops];
+    }
+
+    // Runs the accept loop on the calling thread until close() is called
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+            loops[i].start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        ChatServer.log("NIO server started on port " + port + " with " + loops.length + " event loops. Waiting for clients...");
+
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                ChatServer.log("New client connection from: " + channel.getRemoteAddress());
+
+                channel.configureBlocking(false);
+                channel.socket().setKeepAlive(true);
+                channel.socket().setTcpNoDelay(true);
+
+                // Spread connections round-robin over the event loops
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                NioClientHandler handler = new NioClientHandler(channel, loop, key, clients);
+                ChatServer.addClient(handler);
+                loop.execute(() -> loop.register(handler));
+
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    ChatServer.log("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            ChatServer.log("Error closing server channel: " + e.getMessage());
+        }
+
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    // A single selector thread. Other threads hand it work through execute(),
+    // which is how cross-loop broadcasts get their writes scheduled.
+    static class EventLoop extends Thread {
+        static final int MAX_GATHER = 64;
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>(); // loop only
+        // Scratch array for gathering writes; shared by every handler on this loop
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private long scheduledCount;
+        private volatile boolean open = true;
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Runs task on this loop after at least delayMillis
+        void schedule(Runnable task, long delayMillis) {
+            long deadline = System.nanoTime() + delayMillis * 1_000_000L;
+            if (inEventLoop()) {
+                scheduled.add(new ScheduledTask(deadline, scheduledCount++, task));
+            } else {
+                execute(() -> scheduled.add(new ScheduledTask(deadline, scheduledCount++, task)));
+            }
+        }
+
+        ByteBuffer[] gatherBuffer() {
+            return gather;
+        }
+
+        void register(NioClientHandler handler) {
+            try {
+                SelectionKey selectionKey = handler.getChannel().register(selector, SelectionKey.OP_READ, handler);
+                handler.setSelectionKey(selectionKey);
+                // Anything queued before registration goes out now
+                handler.flush();
+            } catch (IOException e) {
+                ChatServer.log("Error registering client channel: " + e.getMessage());
+                handler.cleanup();
+            }
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (open) {
+                try {
+                    ScheduledTask next = scheduled.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        // Rounded up: rounding down would spin on selectNow() for the last
+                        // fraction of a millisecond before every task
+                        long remaining = next.deadline - System.nanoTime();
+                        if (remaining > 0) {
+                            selector.select((remaining + 999_999L) / 1_000_000L);
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey selectionKey = keys.next();
+                        keys.remove();
+
+                        NioClientHandler handler = (NioClientHandler) selectionKey.attachment();
+                        if (!selectionKey.isValid()) {
+                            handler.cleanup();
+                            continue;
+                        }
+
+                        if (selectionKey.isReadable()) {
+                            handler.onReadable();
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()) {
+                            handler.flush();
+                        }
+                    }
+                } catch (Exception e) {
+                    ChatServer.log(AsyncLogger.Level.ERROR, "Event loop error in " + getName() + ": " + e.getMessage());
+                }
+            }
+
+            try {
+                for (SelectionKey selectionKey : selector.keys()) {
+                    ((NioClientHandler) selectionKey.attachment()).close();
+                }
+                selector.close();
+            } catch (Exception e) {
+                ChatServer.log("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runTask(task);
+            }
+
+            long now = System.nanoTime();
+            while (!scheduled.isEmpty() && scheduled.peek().deadline - now <= 0) {
+                runTask(scheduled.poll().task);
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                ChatServer.log(AsyncLogger.Level.ERROR, "Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        final long deadline;
+        final long order; // keeps tasks with the same deadline in submission order
+        final Runnable task;
+
+        ScheduledTask(long deadline, long order, Runnable task) {
+            this.deadline = deadline;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package server;
+
+import util.WireProtocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// ClientHandler driven by a NioChatServer event loop instead of its own thread.
+// Reads are split into lines here and fed through the same handleJoin/handleLine
+// logic as the blocking handler; writes are queued and drained by the loop.
+public class NioClientHandler extends ClientHandler {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_BUFFER_SIZE = 2 * WireProtocol.MAX_FRAME_LENGTH;
+
+    private final SocketChannel channel;
+    private final NioChatServer.EventLoop loop;
+    // Event loop only: buffers handed to the socket but not yet fully written
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    // The frame each of pendingWrites came from, in step with it
+    private final ArrayDeque<Frame> pendingFrames = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private SelectionKey selectionKey;
+    private boolean negotiated = false;
+    private boolean joined = false;
+    // Rate limited: OP_READ is off until resumeReading runs
+    private boolean readPaused = false;
+    // The line or frame at readBuffer's position has already been charged by admit()
+    private boolean admitted = false;
+
+    public NioClientHandler(SocketChannel channel, NioChatServer.EventLoop loop, SecretKeySpec key, ClientRegistry registry) {
+        super(key, registry);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    // Called by the event loop when the channel has data
+    void onReadable() {
+        if (readPaused) {
+            return; // Selected before OP_READ was dropped; the data waits in the socket
+        }
+
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                cleanup();
+                return;
+            }
+            decodeBuffered();
+
+        } catch (IOException e) {
+            if (isConnected()) {
+                ChatServer.log("Client " + getUsername() + " disconnected: " + e.getMessage());
+            }
+            cleanup();
+        }
+    }
+
+    // Handles whatever complete lines or frames are buffered, up to the first one the rate limits hold back
+    private void decodeBuffered() throws IOException {
+        readBuffer.flip();
+        if (!decode()) {
+            cleanup();
+            return;
+        }
+        readBuffer.compact();
+
+        // A partial line or frame filled the whole buffer - grow it, within reason
+        if (!readPaused && !readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= MAX_BUFFER_SIZE) {
+                ChatServer.log("Message too long from " + getClientInfo() + ", disconnecting");
+                cleanup();
+                return;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    // Returns false (leaving the line or frame in the buffer) if reading has to pause first
+    private boolean admitNext(int bytes) {
+        if (admitted) {
+            admitted = false;
+            return true;
+        }
+
+        long wait = admit(bytes);
+        if (wait <= 0) {
+            return true;
+        }
+
+        // Stop reading; the socket buffer fills up and TCP pushes back on the client
+        admitted = true;
+        readPaused = true;
+        if (selectionKey != null && selectionKey.isValid()) {
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+        }
+        loop.schedule(this::resumeReading, Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+        return false;
+    }
+
+    // Event loop only
+    private void resumeReading() {
+        if (!isConnected() || selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+
+        readPaused = false;
+        try {
+            decodeBuffered();
+        } catch (IOException e) {
+            ChatServer.log("Client " + getUsername() + " disconnected: " + e.getMessage());
+            cleanup();
+            return;
+        }
+        if (!readPaused && selectionKey.isValid()) {
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // Consumes every complete line or frame in readBuffer; false means drop the connection
+    private boolean decode() throws IOException {
+        if (!negotiated) {
+            if (!readBuffer.hasRemaining()) {
+                return true;
+            }
+            if (readBuffer.get(readBuffer.position()) == WireProtocol.HELLO[0]) {
+                if (readBuffer.remaining() < WireProtocol.HELLO.length) {
+                    return true;
+                }
+                byte[] hello = new byte[WireProtocol.HELLO.length];
+                readBuffer.get(hello);
+                if (!WireProtocol.isHello(hello)) {
+                    ChatServer.log("Unknown protocol preface from " + getClientInfo());
+                    return false;
+                }
+                acceptBinary();
+            }
+            negotiated = true;
+        }
+
+        return getWireFormat() == WireProtocol.Format.BINARY ? decodeFrames() : decodeLines();
+    }
+
+    private boolean decodeLines() {
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') {
+                continue;
+            }
+
+            if (!admitNext(i + 1 - lineStart)) {
+                break;
+            }
+
+            int lineEnd = i;
+            if (lineEnd > lineStart && readBuffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            byte[] lineBytes = new byte[lineEnd - lineStart];
+            readBuffer.position(lineStart);
+            readBuffer.get(lineBytes);
+            lineStart = i + 1;
+            readBuffer.position(lineStart);
+
+            if (!processLine(new String(lineBytes, StandardCharsets.US_ASCII))) {
+                return false;
+            }
+        }
+        readBuffer.position(lineStart);
+        return true;
+    }
+
+    private boolean decodeFrames() throws IOException {
+        while (readBuffer.remaining() >= 4) {
+            int frameStart = readBuffer.position();
+            int length = readBuffer.getInt(frameStart);
+            WireProtocol.checkLength(length);
+            if (readBuffer.remaining() < 4 + length) {
+                break;
+            }
+            if (!admitNext(4 + length)) {
+                readBuffer.position(frameStart);
+                break;
+            }
+
+            byte type = readBuffer.get(frameStart + 4);
+            byte[] body = new byte[length - 1];
+            readBuffer.position(frameStart + WireProtocol.HEADER_LENGTH);
+            readBuffer.get(body);
+
+            WireProtocol.Packet packet = new WireProtocol.Packet(type, body);
+            if (!processPacket(packet)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean processLine(String line) {
+        if (joined) {
+            return handleLine(line);
+        }
+
+        try {
+            handleJoin(line);
+            joined = true;
+            return true;
+        } catch (Exception e) {
+            ChatServer.log("Failed to read username from " + getClientInfo() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean processPacket(WireProtocol.Packet packet) {
+        if (joined) {
+            return handlePacket(packet);
+        }
+
+        try {
+            handleJoin(packet);
+            joined = true;
+            return true;
+        } catch (Exception e) {
+            ChatServer.log("Failed to read username from " + getClientInfo() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Cleanup must run on the loop, which also stops selecting the channel once it is closed
+    @Override
+    protected void disconnect() {
+        loop.execute(this::cleanup);
+    }
+
+    // Frames queued within the flush window go out together in one gathering write
+    @Override
+    protected void onFrameQueued() {
+        if (!flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        Runnable flushTask = () -> {
+            flushScheduled.set(false);
+            flush();
+        };
+        int windowMs = ChatServer.getConfig().getFlushWindowMs();
+        if (windowMs > 0) {
+            loop.schedule(flushTask, windowMs);
+        } else {
+            loop.execute(flushTask);
+        }
+    }
+
+    // Event loop only: write as much as the socket takes, then wait for OP_WRITE
+    void flush() {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+
+        ByteBuffer[] gather = loop.gatherBuffer();
+        int flushBytes = ChatServer.getConfig().getFlushBytes();
+        try {
+            while (true) {
+                // Partly written buffers first, then top up from the queue within the byte budget
+                int count = 0;
+                long bytes = 0;
+                for (ByteBuffer buffer : pendingWrites) {
+                    if (count == gather.length) {
+                        break;
+                    }
+                    gather[count++] = buffer;
+                    bytes += buffer.remaining();
+                }
+
+                Frame frame;
+                while (count < gather.length && bytes < flushBytes && (frame = getOutbound().poll()) != null) {
+                    ByteBuffer buffer = frame.toBuffer(getWireFormat());
+                    pendingWrites.add(buffer);
+                    pendingFrames.add(frame);
+                    gather[count++] = buffer;
+                    bytes += buffer.remaining();
+                }
+
+                if (count == 0) {
+                    break;
+                }
+
+                channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+
+                while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining()) {
+                    Metrics.MESSAGES_OUT.increment();
+                    Metrics.BYTES_OUT.add(pendingWrites.poll().limit());
+                    pendingFrames.poll().written();
+                }
+                if (!pendingWrites.isEmpty()) {
+                    // Socket buffer is full; continue when it drains
+                    selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+
+        } catch (IOException e) {
+            ChatServer.log(AsyncLogger.Level.WARN, "Failed to send message to " + getUsername() + ": " + e.getMessage());
+            cleanup();
+        }
+    }
+
+    @Override
+    protected void cleanup() {
+        if (cleanedUp.compareAndSet(false, true)) {
+            super.cleanup();
+            // Frames the socket didn't take; the rest of the queue goes in super.cleanup()
+            Frame frame;
+            while ((frame = pendingFrames.poll()) != null) {
+                frame.written();
+            }
+            pendingWrites.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        markClosed();
+
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ChatServer.log("Error closing channel for " + getUsername() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isRunning() && channel.isOpen();
+    }
+
+    @Override
+    public String getClientInfo() {
+        try {
+            return getUsername() + " (" + channel.getRemoteAddress() + ")";
+        } catch (IOException e) {
+            return getUsername() + " (disconnected)";
+        }
+    }
+}
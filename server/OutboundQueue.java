@@ -0,0 +1,170 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-client queue of frames waiting to be written. Broadcasters only
+// ever offer() into it, so a slow peer can't hold up delivery to anyone else.
+// Chat frames and background frames (presence digests, heartbeats) are kept in
+// separate lanes; the writer always drains chat first.
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, // make room by discarding the oldest queued frame
+        DISCONNECT   // treat the client as a slow consumer and drop the connection
+    }
+
+    private static final int MIN_BACKGROUND_CAPACITY = 16;
+
+    private final ArrayDeque<Frame> frames;
+    private final ArrayDeque<Frame> background;
+    // Background frames that must not be dropped
+    private final ArrayDeque<Frame> presence;
+    private final int capacity;
+    private final int backgroundCapacity;
+    private final OverflowPolicy policy;
+    private final AtomicLong droppedFrames = new AtomicLong();
+    // One lock for both lanes, as ArrayBlockingQueue had for its single one
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.backgroundCapacity = Math.max(MIN_BACKGROUND_CAPACITY, capacity / 4);
+        this.frames = new ArrayDeque<>(Math.min(capacity, 64));
+        this.background = new ArrayDeque<>(MIN_BACKGROUND_CAPACITY);
+        this.presence = new ArrayDeque<>(MIN_BACKGROUND_CAPACITY);
+        this.policy = policy;
+    }
+
+    // Never blocks. Returns false if the frame was refused and the client should be disconnected.
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (frames.size() == capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    return false;
+                }
+                frames.poll().written(); // Never will be; don't leave its latency pending
+                droppedFrames.incrementAndGet();
+            }
+            frames.add(frame);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Low-priority lane. Never refuses: a full lane drops its oldest frame whatever the policy,
+    // since background traffic alone shouldn't get a client disconnected.
+    public void offerBackground(Frame frame) {
+        lock.lock();
+        try {
+            if (background.size() == backgroundCapacity) {
+                background.poll().written();
+                droppedFrames.incrementAndGet();
+            }
+            background.add(frame);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // One presence digest, queued whole. Background priority, but never dropped: a client that
+    // missed an update would keep a wrong user list. Returns false if the earlier digests still
+    // fill the lane; the client should then be disconnected, and gets a fresh user list when it
+    // comes back. A single large digest (a restart storm) is always taken.
+    public boolean offerPresence(List<Frame> digest) {
+        lock.lock();
+        try {
+            if (presence.size() >= backgroundCapacity) {
+                return false;
+            }
+            presence.addAll(digest);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Frame frame;
+            while ((frame = next()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Frame frame;
+            while ((frame = next()) == null) {
+                notEmpty.await();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds lock
+    private Frame next() {
+        Frame frame = frames.poll();
+        if (frame == null) {
+            frame = presence.poll();
+        }
+        return frame != null ? frame : background.poll();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size() + presence.size() + background.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    // Discards everything still queued, e.g. once the connection is gone
+    public void clear() {
+        lock.lock();
+        try {
+            Frame frame;
+            while ((frame = next()) != null) {
+                frame.written(); // Never will be; don't leave its latency pending
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
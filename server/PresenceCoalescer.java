@@ -0,0 +1,108 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Gathers join and leave events over a short window and hands them on as one
+// digest per window, so a reconnect storm costs each client a few frames rather
+// than one per user. Events that cancel out within a window (a user dropping
+// and reconnecting, or joining and leaving again) are not published at all,
+// unless a user list was sent to someone in the meantime: it may have caught
+// the user halfway, so then the final state goes out as usual.
+public class PresenceCoalescer {
+    private final long windowMs;
+    private final BiConsumer<List<String>, List<String>> publisher;
+    private final ScheduledExecutorService timer;
+    // username -> its first and last event this window; guarded by this
+    private Map<String, Change> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    // Windows that still publish cancelled events because of a snapshot; guarded by this
+    private int snapshotWindows;
+
+    // publisher receives (joined, left) at most once per window
+    public PresenceCoalescer(long windowMs, BiConsumer<List<String>, List<String>> publisher) {
+        this.windowMs = windowMs;
+        this.publisher = publisher;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-digest");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void record(String username, boolean joined) {
+        synchronized (this) {
+            Change change = pending.get(username);
+            if (change == null) {
+                pending.put(username, new Change(joined));
+            } else {
+                change.last = joined;
+            }
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                timer.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Call when a user list is built from the registry. Covers the next window too, since an
+    // event can reach the registry before it is recorded here.
+    public synchronized void snapshotTaken() {
+        snapshotWindows = 2;
+    }
+
+    private void flush() {
+        Map<String, Change> changes;
+        boolean keepCancelled;
+        synchronized (this) {
+            changes = pending;
+            pending = new LinkedHashMap<>();
+            flushScheduled = false;
+            keepCancelled = snapshotWindows > 0;
+            if (keepCancelled) {
+                snapshotWindows--;
+            }
+        }
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            // Left then rejoined: still online. Joined then left: never seen. Either way no change,
+            // except to a client whose user list was taken in between.
+            if (change.first != change.last && !keepCancelled) {
+                continue;
+            }
+            (change.last ? joined : left).add(entry.getKey());
+        }
+
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            try {
+                publisher.accept(joined, left);
+            } catch (RuntimeException e) {
+                ChatServer.log(AsyncLogger.Level.ERROR, "Failed to publish presence digest: " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        timer.shutdown();
+    }
+
+    private static final class Change {
+        final boolean first;
+        boolean last;
+
+        Change(boolean joined) {
+            this.first = joined;
+            this.last = joined;
+        }
+    }
+}
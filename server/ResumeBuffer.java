@@ -0,0 +1,110 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Hands out message sequence numbers and remembers the most recent sequenced
+// frames in a fixed ring, so a client that reconnects can be sent just what it
+// missed. Lock-free: a publisher takes the next number and stores its frame in
+// that number's slot, overwriting whatever was there a lap earlier.
+public class ResumeBuffer {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong sequence;
+
+    // capacity is rounded up to a power of two
+    public ResumeBuffer(int capacity, long lastSequence) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.sequence = new AtomicLong(lastSequence);
+    }
+
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
+    // Numbers the frame and keeps it for replay. Callers that need frames numbered in
+    // delivery order (e.g. one room) call this under that order's lock.
+    public long recordRoomMessage(Frame frame, String room) {
+        return record(frame, room, null, null);
+    }
+
+    public long recordDirectMessage(Frame frame, String from, String to) {
+        return record(frame, null, from, to);
+    }
+
+    private long record(Frame frame, String room, String from, String to) {
+        long next = sequence.incrementAndGet();
+        frame.setSequence(next);
+        slots.set((int) (next & mask), new Entry(next, frame, room, from, to));
+        return next;
+    }
+
+    // What a resuming session missed, oldest first: the frames queued for it after the last one
+    // its client received, and those for its rooms and private messages numbered after it
+    // stopped receiving them. null if any of them has already been overwritten.
+    public List<Frame> framesMissed(DeliveryLog log, long lastReceived, String username, Set<String> rooms) {
+        long[] queuedAfter = log.queuedAfter(lastReceived);
+        if (queuedAfter == null) {
+            return null;
+        }
+
+        List<Entry> missed = new ArrayList<>();
+        for (long queued : queuedAfter) {
+            Entry entry = slots.get((int) (queued & mask));
+            if (entry == null || entry.sequence != queued) {
+                return null;
+            }
+            missed.add(entry);
+        }
+
+        long oldestFloor = log.directFloor();
+        for (String room : rooms) {
+            oldestFloor = Math.min(oldestFloor, log.roomFloor(room));
+        }
+        if (oldestFloor != Long.MAX_VALUE && sequence.get() - oldestFloor > slots.length()) {
+            return null;
+        }
+
+        Set<Long> queued = log.queued();
+        for (int i = 0; i < slots.length(); i++) {
+            Entry entry = slots.get(i);
+            if (entry != null && entry.isFor(username, rooms) && !queued.contains(entry.sequence)
+                    && entry.sequence > (entry.room != null ? log.roomFloor(entry.room) : log.directFloor())) {
+                missed.add(entry);
+            }
+        }
+        missed.sort(Comparator.comparingLong(entry -> entry.sequence));
+
+        List<Frame> frames = new ArrayList<>(missed.size());
+        for (Entry entry : missed) {
+            frames.add(entry.frame);
+        }
+        return frames;
+    }
+
+    private static final class Entry {
+        final long sequence;
+        final Frame frame;
+        final String room;   // null for a direct message
+        final String from;
+        final String to;
+
+        Entry(long sequence, Frame frame, String room, String from, String to) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.room = room;
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean isFor(String username, Set<String> rooms) {
+            return room != null ? rooms.contains(room) : username.equals(from) || username.equals(to);
+        }
+    }
+}
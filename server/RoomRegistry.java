@@ -0,0 +1,119 @@
+package server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+// Room name -> subscribers. Fan-out for a message iterates only its room's
+// subscriber set, and each room orders its own deliveries with its own lock,
+// so a busy room never holds up another one. Joins and leaves are concurrent
+// set operations and don't wait for a delivery in progress.
+public class RoomRegistry {
+    // Everyone is subscribed on join; it is what the old global broadcast was
+    public static final String LOBBY = "lobby";
+
+    private static final Pattern VALID_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    public RoomRegistry() {
+        rooms.put(LOBBY, new Room(LOBBY));
+    }
+
+    // Lower-cases and strips a leading '#'; returns null if the name isn't usable
+    public static String normalize(String name) {
+        String normalized = name.trim().toLowerCase();
+        if (normalized.startsWith("#")) {
+            normalized = normalized.substring(1);
+        }
+        return VALID_NAME.matcher(normalized).matches() ? normalized : null;
+    }
+
+    // Creates the room on first use; returns false if the client was already in it
+    public boolean join(String name, ClientHandler client) {
+        boolean[] added = new boolean[1];
+        // compute/computeIfPresent run atomically per room, so a join can't race
+        // with the last leave removing the room
+        rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key);
+            }
+            added[0] = room.subscribers.add(client);
+            return room;
+        });
+        return added[0];
+    }
+
+    // Empty rooms other than the lobby are dropped; returns false if the client wasn't in it
+    public boolean leave(String name, ClientHandler client) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            removed[0] = room.subscribers.remove(client);
+            return room.subscribers.isEmpty() && !LOBBY.equals(key) ? null : room;
+        });
+        return removed[0];
+    }
+
+    public void leaveAll(ClientHandler client) {
+        for (String name : client.getRooms()) {
+            leave(name, client);
+        }
+    }
+
+    // The room, or null if nobody is in it
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    public Room lobby() {
+        return rooms.get(LOBBY);
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    public void clear() {
+        rooms.clear();
+        rooms.put(LOBBY, new Room(LOBBY));
+    }
+
+    public static final class Room implements Iterable<ClientHandler> {
+        private final String name;
+        private final Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+        // Orders deliveries within this room so every subscriber sees them in the same sequence
+        private final ReentrantLock deliveryLock = new ReentrantLock();
+
+        private Room(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isLobby() {
+            return LOBBY.equals(name);
+        }
+
+        public boolean contains(ClientHandler client) {
+            return subscribers.contains(client);
+        }
+
+        ReentrantLock getDeliveryLock() {
+            return deliveryLock;
+        }
+
+        @Override
+        public Iterator<ClientHandler> iterator() {
+            return Collections.unmodifiableSet(subscribers).iterator();
+        }
+
+        public int size() {
+            return subscribers.size();
+        }
+    }
+}
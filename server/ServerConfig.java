@@ -0,0 +1,313 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Startup options for ChatServer, parsed from "--name=value" command line arguments
+public class ServerConfig {
+
+    public enum Mode {
+        THREADS, // one blocking ClientHandler thread per connection (default)
+        VIRTUAL, // one blocking ClientHandler per connection on a virtual thread (Java 21+)
+        NIO      // a few selector event loops shared by all connections
+    }
+
+    private int port = 1234;
+    private Mode mode = Mode.THREADS;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int outboundQueueCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private int flushWindowMs = 1;
+    private int flushBytes = 64 * 1024;
+    private AsyncLogger.Level logLevel = AsyncLogger.Level.INFO;
+    private String journalDir = "journal";
+    private long journalSegmentBytes = 64L * 1024 * 1024;
+    private long journalRetainBytes = 1024L * 1024 * 1024;
+    private int replayCount = 50;
+    private int presenceWindowMs = 250;
+    private int resumeWindowMs = 30000;
+    private int resumeBuffer = 4096;
+    private int heartbeatMs = 15000;
+    private int idleTimeoutMs = 45000;
+    private int rateMessages = 20;
+    private int rateBytes = 64 * 1024;
+    private int fanoutBudget = 500000;
+    private String nodeId;
+    private int clusterPort = 0;
+    private List<String> peers = new ArrayList<>();
+    private int relayLogSize = 4096;
+    private int peerGraceMs = 5000;
+    private int metricsIntervalSeconds = 60;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? "true" : arg.substring(eq + 1);
+
+            switch (name) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "nio":
+                    config.mode = Mode.NIO;
+                    break;
+                case "virtual-threads":
+                    config.mode = Mode.VIRTUAL;
+                    break;
+                case "event-loops":
+                    config.eventLoops = Integer.parseInt(value);
+                    break;
+                case "outbound-queue":
+                    config.outboundQueueCapacity = Integer.parseInt(value);
+                    break;
+                case "overflow-policy":
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "flush-window-ms":
+                    config.flushWindowMs = Integer.parseInt(value);
+                    break;
+                case "flush-bytes":
+                    config.flushBytes = Integer.parseInt(value);
+                    break;
+                case "log-level":
+                    config.logLevel = AsyncLogger.Level.valueOf(value.toUpperCase());
+                    break;
+                case "journal-dir":
+                    config.journalDir = value;
+                    break;
+                case "no-journal":
+                    config.journalDir = null;
+                    break;
+                case "journal-segment-mb":
+                    config.journalSegmentBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "journal-retain-mb":
+                    config.journalRetainBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "replay":
+                    config.replayCount = Integer.parseInt(value);
+                    break;
+                case "presence-window-ms":
+                    config.presenceWindowMs = Integer.parseInt(value);
+                    break;
+                case "resume-window-ms":
+                    config.resumeWindowMs = Integer.parseInt(value);
+                    break;
+                case "resume-buffer":
+                    config.resumeBuffer = Integer.parseInt(value);
+                    break;
+                case "heartbeat-ms":
+                    config.heartbeatMs = Integer.parseInt(value);
+                    break;
+                case "idle-timeout-ms":
+                    config.idleTimeoutMs = Integer.parseInt(value);
+                    break;
+                case "rate-messages":
+                    config.rateMessages = Integer.parseInt(value);
+                    break;
+                case "rate-bytes":
+                    config.rateBytes = Integer.parseInt(value);
+                    break;
+                case "fanout-budget":
+                    config.fanoutBudget = Integer.parseInt(value);
+                    break;
+                case "metrics-interval-s":
+                    config.metricsIntervalSeconds = Integer.parseInt(value);
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "cluster-port":
+                    config.clusterPort = Integer.parseInt(value);
+                    break;
+                case "peers":
+                    config.peers = new ArrayList<>();
+                    for (String peer : value.split(",")) {
+                        if (!peer.trim().isEmpty()) {
+                            ClusterNode.parseAddress(peer.trim());
+                            config.peers.add(peer.trim());
+                        }
+                    }
+                    break;
+                case "relay-log":
+                    config.relayLogSize = Integer.parseInt(value);
+                    break;
+                case "peer-grace-ms":
+                    config.peerGraceMs = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+
+        if (config.eventLoops < 1) {
+            throw new IllegalArgumentException("--event-loops must be at least 1");
+        }
+        if (config.outboundQueueCapacity < 1) {
+            throw new IllegalArgumentException("--outbound-queue must be at least 1");
+        }
+        if (config.flushWindowMs < 0 || config.flushBytes < 1) {
+            throw new IllegalArgumentException("--flush-window-ms must be >= 0 and --flush-bytes >= 1");
+        }
+        if (config.replayCount < 0 || config.journalSegmentBytes < 1) {
+            throw new IllegalArgumentException("--replay must be >= 0 and --journal-segment-mb >= 1");
+        }
+        if (config.journalRetainBytes < 0) {
+            throw new IllegalArgumentException("--journal-retain-mb must be >= 0");
+        }
+        if (config.presenceWindowMs < 0) {
+            throw new IllegalArgumentException("--presence-window-ms must be >= 0");
+        }
+        if (config.resumeWindowMs < 0 || config.resumeBuffer < 1) {
+            throw new IllegalArgumentException("--resume-window-ms must be >= 0 and --resume-buffer >= 1");
+        }
+        if (config.heartbeatMs < 0 || config.idleTimeoutMs < 0) {
+            throw new IllegalArgumentException("--heartbeat-ms and --idle-timeout-ms must be >= 0");
+        }
+        if (config.heartbeatMs > 0 && config.idleTimeoutMs > 0 && config.idleTimeoutMs <= config.heartbeatMs) {
+            throw new IllegalArgumentException("--idle-timeout-ms must be longer than --heartbeat-ms, or pinged clients never get to answer");
+        }
+        if (config.clusterPort < 0 || (!config.peers.isEmpty() && config.clusterPort == 0)) {
+            throw new IllegalArgumentException("--peers needs a --cluster-port for the peers to connect back to");
+        }
+        if (config.relayLogSize < 1 || config.peerGraceMs < 0) {
+            throw new IllegalArgumentException("--relay-log must be at least 1 and --peer-grace-ms >= 0");
+        }
+        if (config.metricsIntervalSeconds < 0) {
+            throw new IllegalArgumentException("--metrics-interval-s must be >= 0");
+        }
+        if (config.rateMessages < 0 || config.rateBytes < 0 || config.fanoutBudget < 0) {
+            throw new IllegalArgumentException("--rate-messages, --rate-bytes and --fanout-budget must be >= 0");
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getFlushWindowMs() {
+        return flushWindowMs;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    public AsyncLogger.Level getLogLevel() {
+        return logLevel;
+    }
+
+    // null when the journal is disabled
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public long getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    // Old segments are deleted beyond this; 0 = keep them all
+    public long getJournalRetainBytes() {
+        return journalRetainBytes;
+    }
+
+    public int getReplayCount() {
+        return replayCount;
+    }
+
+    // 0 = publish every join/leave on its own
+    public int getPresenceWindowMs() {
+        return presenceWindowMs;
+    }
+
+    // 0 = no resumable sessions
+    public int getResumeWindowMs() {
+        return resumeWindowMs;
+    }
+
+    public int getResumeBuffer() {
+        return resumeBuffer;
+    }
+
+    // 0 = never ping
+    public int getHeartbeatMs() {
+        return heartbeatMs;
+    }
+
+    // 0 = never drop a connection for being quiet
+    public int getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    // Per connection, per second; also the burst size. 0 = unlimited
+    public int getRateMessages() {
+        return rateMessages;
+    }
+
+    // Per connection, per second; also the burst size. 0 = unlimited
+    public int getRateBytes() {
+        return rateBytes;
+    }
+
+    // Message deliveries per second across the whole server. 0 = unlimited
+    public int getFanoutBudget() {
+        return fanoutBudget;
+    }
+
+    // How often metrics are written to the log; 0 = never (they're still available over JMX)
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    // Names this node to its peers; defaults to one based on the client port
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    // 0 = not clustered
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    // host:port of the other nodes' cluster ports
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    // Events kept for resending to peers that fall behind or reconnect
+    public int getRelayLogSize() {
+        return relayLogSize;
+    }
+
+    // How long a disconnected peer's users stay listed; 0 = drop them straight away
+    public int getPeerGraceMs() {
+        return peerGraceMs;
+    }
+}
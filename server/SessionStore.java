@@ -0,0 +1,115 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Sessions whose connection dropped, kept for a short window under their resume
+// token. A client that reconnects within the window claims its session back and
+// carries on; one that doesn't is handed to onExpired (which announces the leave).
+public class SessionStore {
+    private static final int TOKEN_BYTES = 16;
+
+    private final long windowMs;
+    private final Consumer<Suspended> onExpired;
+    private final ConcurrentHashMap<String, Suspended> suspended = new ConcurrentHashMap<>();
+    // Username -> number of its suspended sessions
+    private final ConcurrentHashMap<String, Integer> suspendedUsers = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SessionStore(long windowMs, Consumer<Suspended> onExpired) {
+        this.windowMs = windowMs;
+        this.onExpired = onExpired;
+    }
+
+    public String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        synchronized (random) {
+            random.nextBytes(bytes);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // deliveryLog is null for sessions that don't track what they were sent
+    public void suspend(String token, String username, Set<String> rooms, String currentRoom, DeliveryLog deliveryLog) {
+        Suspended session = new Suspended(token, username, new ArrayList<>(rooms), currentRoom, deliveryLog);
+        suspendedUsers.merge(username, 1, Integer::sum);
+        suspended.put(token, session);
+        session.expiry = timer.schedule(() -> {
+            if (suspended.remove(token, session)) {
+                forget(session);
+                onExpired.accept(session);
+            }
+        }, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    // The suspended session for this token, removed from the store; null if unknown or expired
+    public Suspended claim(String token) {
+        Suspended session = suspended.remove(token);
+        if (session != null) {
+            forget(session);
+            if (session.expiry != null) {
+                session.expiry.cancel(false);
+            }
+        }
+        return session;
+    }
+
+    private void forget(Suspended session) {
+        suspendedUsers.computeIfPresent(session.username, (username, count) -> count > 1 ? count - 1 : null);
+    }
+
+    // Users whose only session is suspended still count as online for others
+    public List<String> suspendedUsernames() {
+        List<String> usernames = new ArrayList<>();
+        for (Suspended session : suspended.values()) {
+            usernames.add(session.username);
+        }
+        return usernames;
+    }
+
+    public boolean isSuspended(String username) {
+        return suspendedUsers.containsKey(username);
+    }
+
+    public void close() {
+        timer.shutdownNow();
+        suspended.clear();
+        suspendedUsers.clear();
+    }
+
+    public static final class Suspended {
+        final String token;
+        final String username;
+        final List<String> rooms;
+        final String currentRoom;
+        final DeliveryLog deliveryLog;
+        volatile ScheduledFuture<?> expiry;
+
+        Suspended(String token, String username, List<String> rooms, String currentRoom, DeliveryLog deliveryLog) {
+            this.token = token;
+            this.username = username;
+            this.rooms = Collections.unmodifiableList(rooms);
+            this.currentRoom = currentRoom;
+            this.deliveryLog = deliveryLog;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+    }
+}
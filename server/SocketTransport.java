@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// The server's normal transport: a TCP listening socket
+public class SocketTransport implements Transport {
+    private final ServerSocket serverSocket;
+
+    public SocketTransport(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        return new SocketConnection(serverSocket.accept());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !serverSocket.isClosed();
+    }
+
+    @Override
+    public String describe() {
+        return "port " + serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private static final class SocketConnection implements Connection {
+        private final Socket socket;
+
+        SocketConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            // Dead peers are found by the server's idle timer; keepalive covers line clients,
+            // which can't answer pings
+            socket.setKeepAlive(true);
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed() && socket.isConnected();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package server;
+
+// Classic token bucket: refills at a fixed rate up to a burst capacity. acquire()
+// always takes what it is asked for, running into debt if need be, and returns how
+// long the caller should then hold off; a caller that waits that long before its
+// next acquire can never exceed the rate by more than one burst.
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final double tokensPerNano;
+    private final double capacity;
+    // guarded by this
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(long ratePerSecond, long capacity) {
+        if (ratePerSecond < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Rate and capacity must be at least 1");
+        }
+        this.tokensPerNano = (double) ratePerSecond / NANOS_PER_SECOND;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    // Takes n tokens; returns nanos until the bucket is out of debt again (0 if it isn't in debt)
+    public synchronized long acquire(long n) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+
+        tokens -= n;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,40 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Where the blocking server (threads and virtual modes) gets its client connections from.
+// SocketTransport listens on a TCP port; LoopbackTransport connects clients in the same
+// JVM through memory, so the server can be driven by tests without a network.
+public interface Transport extends Closeable {
+
+    // Blocks until the next client connects; throws once the transport is closed
+    Connection accept() throws IOException;
+
+    boolean isOpen();
+
+    // For log lines, e.g. "port 1234"
+    String describe();
+
+    // Stops accepting; connections already accepted stay open
+    @Override
+    void close() throws IOException;
+
+    // One client's byte streams, in the same shape as a Socket's
+    interface Connection extends Closeable {
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        boolean isOpen();
+
+        String getRemoteAddress();
+
+        // Also unblocks a read or write in progress on another thread, which then throws
+        @Override
+        void close() throws IOException;
+    }
+}
@@ -5,17 +5,35 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.Base64;
 
 public class AESUtil {
     private static final String SECRET_KEY_ALGO = "PBKDF2WithHmacSHA256";
+    private static final String CIPHER_ALGO = "AES/CBC/PKCS5Padding";
     private static final int ITERATIONS = 65536;
     private static final int KEY_SIZE = 256;
 
+    public static final int IV_LENGTH = 16;
+    private static final int BLOCK_SIZE = 16;
+
     // You can generate this once and store securely; or transmit once per session
     private static final String SALT = "a9v5n38s"; // just for testing
 
+    // Cipher.getInstance and new SecureRandom() are expensive, so each thread keeps its own
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(CIPHER_ALGO);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES cipher not available", e);
+        }
+    });
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<byte[]> IV = ThreadLocal.withInitial(() -> new byte[IV_LENGTH]);
+
     public static SecretKeySpec getKeyFromPassword(String password) throws Exception {
         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT.getBytes(), ITERATIONS, KEY_SIZE);
         SecretKeyFactory factory = SecretKeyFactory.getInstance(SECRET_KEY_ALGO);
@@ -23,34 +41,74 @@ public class AESUtil {
         return new SecretKeySpec(key, "AES");
     }
 
-    public static String encrypt(String data, SecretKeySpec key) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        byte[] iv = new byte[16];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
+    // Size of IV + ciphertext for a plaintext of the given length
+    public static int encryptedLength(int plainLength) {
+        return IV_LENGTH + (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    // Writes IV + ciphertext of plain[off..off+len) into out at outOff; returns bytes written
+    public static int encrypt(byte[] plain, int off, int len, SecretKeySpec key, byte[] out, int outOff) throws Exception {
+        Cipher cipher = initEncrypt(key);
+        System.arraycopy(IV.get(), 0, out, outOff, IV_LENGTH);
+        return IV_LENGTH + cipher.doFinal(plain, off, len, out, outOff + IV_LENGTH);
+    }
+
+    // Decrypts IV + ciphertext from data[off..off+len) into out at outOff; returns plaintext length.
+    // out needs room for len - IV_LENGTH bytes (the padded size).
+    public static int decrypt(byte[] data, int off, int len, SecretKeySpec key, byte[] out, int outOff) throws Exception {
+        Cipher cipher = initDecrypt(data, off, len, key);
+        return cipher.doFinal(data, off + IV_LENGTH, len - IV_LENGTH, out, outOff);
+    }
 
-        cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-        byte[] encrypted = cipher.doFinal(data.getBytes());
-        byte[] encryptedWithIv = new byte[iv.length + encrypted.length];
-        System.arraycopy(iv, 0, encryptedWithIv, 0, iv.length);
-        System.arraycopy(encrypted, 0, encryptedWithIv, iv.length, encrypted.length);
+    // ByteBuffer variants consume plain/data up to their limit and advance out's position
+    public static int encrypt(ByteBuffer plain, SecretKeySpec key, ByteBuffer out) throws Exception {
+        Cipher cipher = initEncrypt(key);
+        out.put(IV.get());
+        return IV_LENGTH + cipher.doFinal(plain, out);
+    }
+
+    public static int decrypt(ByteBuffer data, SecretKeySpec key, ByteBuffer out) throws Exception {
+        if (data.remaining() < IV_LENGTH + BLOCK_SIZE) {
+            throw new GeneralSecurityException("Encrypted data too short");
+        }
+
+        byte[] iv = IV.get();
+        data.get(iv);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(data, out);
+    }
 
-        return Base64.getEncoder().encodeToString(encryptedWithIv);
+    // String API kept for existing callers: UTF-8 text in, Base64(IV + ciphertext) out
+    public static String encrypt(String data, SecretKeySpec key) throws Exception {
+        byte[] plain = data.getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = new byte[encryptedLength(plain.length)];
+        encrypt(plain, 0, plain.length, key, encrypted, 0);
+        return Base64.getEncoder().encodeToString(encrypted);
     }
 
     public static String decrypt(String encryptedData, SecretKeySpec key) throws Exception {
         byte[] decoded = Base64.getDecoder().decode(encryptedData);
-        byte[] iv = new byte[16];
-        byte[] encrypted = new byte[decoded.length - 16];
-        System.arraycopy(decoded, 0, iv, 0, 16);
-        System.arraycopy(decoded, 16, encrypted, 0, encrypted.length);
+        byte[] original = new byte[Math.max(0, decoded.length - IV_LENGTH)];
+        int length = decrypt(decoded, 0, decoded.length, key, original, 0);
+        return new String(original, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static Cipher initEncrypt(SecretKeySpec key) throws GeneralSecurityException {
+        byte[] iv = IV.get();
+        RANDOM.get().nextBytes(iv);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
 
-        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+    private static Cipher initDecrypt(byte[] data, int off, int len, SecretKeySpec key) throws GeneralSecurityException {
+        if (len < IV_LENGTH + BLOCK_SIZE) {
+            throw new GeneralSecurityException("Encrypted data too short");
+        }
 
-        byte[] original = cipher.doFinal(encrypted);
-        return new String(original);
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(data, off, IV_LENGTH));
+        return cipher;
     }
 }
@@ -0,0 +1,135 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram, shared by the server's metrics and the load generator.
+// Buckets are log-linear: each power of two is split into 2^subBucketBits, so a
+// percentile is reported to within 1 / 2^subBucketBits of the true value whatever
+// its magnitude, and recording is one atomic increment.
+public class LatencyHistogram {
+    private final int subBucketBits;
+    private final int subBuckets;
+    private final AtomicLongArray buckets;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // 3 bits is within ~12%, 5 bits within ~3% at four times the memory
+    public LatencyHistogram(int subBucketBits) {
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+        this.buckets = new AtomicLongArray((64 - subBucketBits) * subBuckets);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(indexOf(value));
+        sum.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return snapshot().count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the given fraction of samples (0.5 = median); 0 if empty
+    public long percentile(double fraction) {
+        return snapshot().percentile(fraction);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(counts, max.get(), sum.sum());
+    }
+
+    private int indexOf(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + mantissa;
+    }
+
+    // Largest value that lands in the bucket
+    private long upperBound(int index) {
+        if (index < subBuckets) {
+            return index;
+        }
+        int exponent = index / subBuckets + subBucketBits - 1;
+        long lower = (long) (subBuckets + index % subBuckets) << (exponent - subBucketBits);
+        return lower + (1L << (exponent - subBucketBits)) - 1;
+    }
+
+    // Bucket counts at one point in time
+    public final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final long sum;
+
+        private Snapshot(long[] counts, long max, long sum) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.max = max;
+            this.sum = sum;
+        }
+
+        // What was recorded between earlier and this snapshot. The max is the top of the highest
+        // bucket used, capped by the all-time max, since the exact one isn't kept per interval.
+        public Snapshot since(Snapshot earlier) {
+            long[] delta = new long[counts.length];
+            long highest = 0;
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+                if (delta[i] > 0) {
+                    highest = Math.min(upperBound(i), max);
+                }
+            }
+            return new Snapshot(delta, highest, sum - earlier.sum);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long percentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long mean() {
+            return count == 0 ? 0 : sum / count;
+        }
+    }
+}
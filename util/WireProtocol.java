@@ -0,0 +1,233 @@
+package util;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// Binary framing shared by client and server. A client that supports it opens
+// with HELLO; a server that supports it answers with the same bytes and both
+// sides switch from Base64 text lines to frames of
+//
+//   [int length][byte type][16 byte IV][ciphertext]
+//
+// where length counts everything after itself. Sequenced chat frames carry the
+// server's message sequence number in clear between the type and the IV.
+// Base64 lines never contain a zero byte, so the server can tell the two
+// protocols apart from the first byte.
+public final class WireProtocol {
+
+    public enum Format {
+        LINE,  // legacy: Base64(IV + ciphertext) + '\n'
+        BINARY // length-prefixed frames
+    }
+
+    public static final byte[] HELLO = {0, 'C', 'H', 'A', 'T', 'B', '1', '\n'};
+    public static final int HEADER_LENGTH = 5; // length + type
+    public static final int SEQUENCE_LENGTH = 8;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    // Frame types
+    public static final byte TYPE_JOIN = 1;    // first frame from the client: its username
+    public static final byte TYPE_MESSAGE = 2; // chat text
+    public static final byte TYPE_PRESENCE_SNAPSHOT = 3; // server -> client after join: everyone online
+    public static final byte TYPE_PRESENCE_DELTA = 4;    // server -> client: users who came or went since
+    public static final byte TYPE_SESSION = 5;   // server -> client after join: resume token
+    public static final byte TYPE_SEQUENCED = 6; // server -> client: chat text with its sequence number
+    public static final byte TYPE_RESUME = 7;    // client -> server instead of TYPE_JOIN: pick up a dropped session
+    public static final byte TYPE_LEAVE = 8;     // client -> server, empty: closing for good, don't keep the session
+    public static final byte TYPE_PING = 9;      // empty; the other side answers with TYPE_PONG
+    public static final byte TYPE_PONG = 10;     // empty
+
+    // Presence changes
+    public static final byte PRESENCE_JOINED = 1;
+    public static final byte PRESENCE_LEFT = 2;
+
+    private WireProtocol() {
+    }
+
+    public static boolean isHello(byte[] bytes) {
+        return Arrays.equals(bytes, HELLO);
+    }
+
+    // A frame with no body, e.g. TYPE_LEAVE
+    public static byte[] emptyFrame(byte type) {
+        return ByteBuffer.allocate(HEADER_LENGTH).putInt(1).put(type).array();
+    }
+
+    // Encrypts text straight into a complete frame, header included
+    public static byte[] encryptFrame(byte type, String text, SecretKeySpec key) throws Exception {
+        return encryptFrame(type, text.getBytes(StandardCharsets.UTF_8), key);
+    }
+
+    public static byte[] encryptFrame(byte type, byte[] plain, SecretKeySpec key) throws Exception {
+        int bodyLength = AESUtil.encryptedLength(plain.length);
+        byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+
+        ByteBuffer.wrap(frame).putInt(1 + bodyLength).put(type);
+        AESUtil.encrypt(plain, 0, plain.length, key, frame, HEADER_LENGTH);
+        return frame;
+    }
+
+    // Like encryptFrame, with room for a sequence number to be filled in by setSequence
+    public static byte[] encryptSequencedFrame(String text, SecretKeySpec key) throws Exception {
+        byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = SEQUENCE_LENGTH + AESUtil.encryptedLength(plain.length);
+        byte[] frame = new byte[HEADER_LENGTH + bodyLength];
+
+        ByteBuffer.wrap(frame).putInt(1 + bodyLength).put(TYPE_SEQUENCED);
+        AESUtil.encrypt(plain, 0, plain.length, key, frame, HEADER_LENGTH + SEQUENCE_LENGTH);
+        return frame;
+    }
+
+    public static void setSequence(byte[] sequencedFrame, long sequence) {
+        ByteBuffer.wrap(sequencedFrame).putLong(HEADER_LENGTH, sequence);
+    }
+
+    public static long getSequence(Packet packet) {
+        return packet.type == TYPE_SEQUENCED ? ByteBuffer.wrap(packet.body).getLong(0) : 0;
+    }
+
+    public static String decrypt(Packet packet, SecretKeySpec key) throws Exception {
+        return new String(decryptBytes(packet, key), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] decryptBytes(Packet packet, SecretKeySpec key) throws Exception {
+        int offset = packet.type == TYPE_SEQUENCED ? SEQUENCE_LENGTH : 0;
+        int length = packet.body.length - offset;
+        byte[] plain = new byte[Math.max(0, length - AESUtil.IV_LENGTH)];
+        int plainLength = AESUtil.decrypt(packet.body, offset, length, key, plain, 0);
+        return plainLength == plain.length ? plain : Arrays.copyOf(plain, plainLength);
+    }
+
+    // Plaintext of TYPE_SESSION: [boolean resumed] then the token (writeUTF)
+    public static byte[] encodeSession(boolean resumed, String token) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeBoolean(resumed);
+        data.writeUTF(token);
+        return bytes.toByteArray();
+    }
+
+    public static Session decodeSession(byte[] plain) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(plain));
+        return new Session(data.readBoolean(), data.readUTF());
+    }
+
+    // Plaintext of TYPE_RESUME: username, token (writeUTF) and the last sequence number received
+    public static byte[] encodeResume(String username, String token, long lastSequence) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeUTF(username);
+        data.writeUTF(token);
+        data.writeLong(lastSequence);
+        return bytes.toByteArray();
+    }
+
+    public static Resume decodeResume(byte[] plain) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(plain));
+        return new Resume(data.readUTF(), data.readUTF(), data.readLong());
+    }
+
+    // Plaintext of the presence frames: [byte change][int count] then count usernames (writeUTF)
+    public static byte[] encodePresence(byte change, Collection<String> usernames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + usernames.size() * 12);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte(change);
+        data.writeInt(usernames.size());
+        for (String username : usernames) {
+            data.writeUTF(username);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Presence decodePresence(byte[] plain) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(plain));
+        byte change = data.readByte();
+        int count = data.readInt();
+        if (count < 0 || count > plain.length / 2) {
+            throw new IOException("Invalid presence count: " + count);
+        }
+
+        List<String> usernames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            usernames.add(data.readUTF());
+        }
+        return new Presence(change, usernames);
+    }
+
+    // Blocking read of one frame; returns null on a clean end of stream
+    public static Packet readPacket(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        checkLength(length);
+        byte type = in.readByte();
+        byte[] body = new byte[length - 1];
+        in.readFully(body);
+        return new Packet(type, body);
+    }
+
+    public static void checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    // A decoded presence snapshot or delta
+    public static final class Presence {
+        public final byte change;
+        public final List<String> usernames;
+
+        public Presence(byte change, List<String> usernames) {
+            this.change = change;
+            this.usernames = usernames;
+        }
+    }
+
+    public static final class Session {
+        public final boolean resumed;
+        public final String token;
+
+        public Session(boolean resumed, String token) {
+            this.resumed = resumed;
+            this.token = token;
+        }
+    }
+
+    public static final class Resume {
+        public final String username;
+        public final String token;
+        public final long lastSequence;
+
+        public Resume(String username, String token, long lastSequence) {
+            this.username = username;
+            this.token = token;
+            this.lastSequence = lastSequence;
+        }
+    }
+
+    // A received frame: its type and the still encrypted body (IV + ciphertext)
+    public static final class Packet {
+        public final byte type;
+        public final byte[] body;
+
+        public Packet(byte type, byte[] body) {
+            this.type = type;
+            this.body = body;
+        }
+    }
+}